@@ -1,8 +1,8 @@
 package edu.wisc.cs.sdn.sr;
 
-import java.util.Map;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
@@ -12,7 +12,7 @@ import net.floodlightcontroller.util.MACAddress;
  * A cache of MAC address to IP address mappings.
  * @author Aaron Gember-Jacobson
  */
-public class ArpCache implements Runnable
+public class ArpCache
 {
 	/** Timeout (in milliseconds) for entries in the ARP cache */
 	public static final int TIMEOUT = 15 * 1000;
@@ -21,18 +21,63 @@ public class ArpCache implements Runnable
 	 *  determine the MAC address associated with an IP address */
 	public static final int MAX_SEND_COUNT = 5;
 	
+	/** Time (in milliseconds) between ARP request packets for the same IP */
+	public static final int RETRANSMIT_INTERVAL = 1000;
+	
+	/** Time (in milliseconds) before an entry times out at which the entry 
+	 * is refreshed, if it is in use */
+	public static final int REFRESH_LEAD = 3 * RETRANSMIT_INTERVAL;
+	
+	/** Maximum number and total length of packets waiting on a single 
+	 * request */
+	public static final int MAX_QUEUED_PACKETS_PER_REQUEST = 64;
+	public static final int MAX_QUEUED_BYTES_PER_REQUEST = 64 * 1024;
+	
+	/** Maximum number and total length of packets waiting on all requests */
+	public static final int MAX_QUEUED_PACKETS = 4096;
+	public static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+	
+	/** Number of gratuitous ARP packets sent to announce each interface, and
+	 * time (in milliseconds) between them */
+	public static final int ANNOUNCE_COUNT = 2;
+	public static final int ANNOUNCE_INTERVAL = 2000;
+	
+	/** Drop policies for a packet that would exceed the queue limits: drop the
+	 * packet, or drop packets that have been waiting on the same request the
+	 * longest until it fits */
+	public static final int DROP_TAIL = 0;
+	public static final int DROP_OLDEST = 1;
+	
 	/** Router to which this cache belongs */
 	private Router router;
 	
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Entries in the cache; maps an IP address to an entry, and is read 
+	 * without locking or boxing on the forwarding path */
+	private IntMap<ArpEntry> entries;
 	
 	/** Requests for IP address, MAC address pairs that should be added to the 
 	 * cache; maps an IP address to a request */
-	private Map<Integer,ArpRequest> requests;
+	private IntMap<ArpRequest> requests;
+	
+	/** Number of times entries have been added to or removed from the cache */
+	private AtomicLong version;
+	
+	/** Policy for dropping packets that would exceed the queue limits */
+	private int dropPolicy;
 	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+	/** Whether entries in use are refreshed before they time out */
+	private volatile boolean refreshEnabled;
+	
+	/** Whether entries are learned from ARP packets not addressed to the 
+	 * router */
+	private volatile boolean snoopingEnabled;
+	
+	/** Number and total length of packets waiting on all requests */
+	private AtomicInteger queuedPackets;
+	private AtomicLong queuedBytes;
+	
+	/** Number of packets dropped because they exceeded the queue limits */
+	private AtomicLong droppedPackets;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
@@ -41,71 +86,110 @@ public class ArpCache implements Runnable
 	public ArpCache(Router router)
 	{
 		this.router = router;
-		this.entries = new ConcurrentHashMap<Integer,ArpEntry>();
-		this.requests = new ConcurrentHashMap<Integer,ArpRequest>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		this.entries = new IntMap<ArpEntry>();
+		this.requests = new IntMap<ArpRequest>();
+		this.version = new AtomicLong();
+		this.dropPolicy = DROP_TAIL;
+		this.refreshEnabled = true;
+		this.snoopingEnabled = false;
+		this.queuedPackets = new AtomicInteger();
+		this.queuedBytes = new AtomicLong();
+		this.droppedPackets = new AtomicLong();
 	}
 	
 	/**
-	 * Every second: generate ARP request packets, timeout ARP requests, and
-	 * timeout ARP entries.
+	 * @param dropPolicy policy for dropping packets that would exceed the 
+	 *        queue limits; DROP_TAIL or DROP_OLDEST
+	 */
+	public void setDropPolicy(int dropPolicy)
+	{ this.dropPolicy = dropPolicy; }
+	
+	/**
+	 * @param refreshEnabled whether entries in use are refreshed, by sending
+	 *        a unicast ARP request to the known MAC address, REFRESH_LEAD 
+	 *        milliseconds before they time out; packets continue to be 
+	 *        forwarded using the existing entry until it is replaced by the
+	 *        reply or times out
 	 */
-	public void run()
+	public void setRefreshEnabled(boolean refreshEnabled)
+	{ this.refreshEnabled = refreshEnabled; }
+	
+	/**
+	 * @param snoopingEnabled whether entries are learned from the sender 
+	 *        fields of ARP requests and gratuitous ARP packets received from
+	 *        directly connected hosts, in addition to replies to the router's
+	 *        own requests
+	 */
+	public void setSnoopingEnabled(boolean snoopingEnabled)
+	{ this.snoopingEnabled = snoopingEnabled; }
+	
+	/**
+	 * @return number of packets waiting for ARP requests to be resolved
+	 */
+	public int getQueuedPackets()
+	{ return this.queuedPackets.get(); }
+	
+	/**
+	 * @return total length of packets waiting for ARP requests to be resolved
+	 */
+	public long getQueuedBytes()
+	{ return this.queuedBytes.get(); }
+	
+	/**
+	 * @return number of packets dropped because they exceeded the queue limits
+	 */
+	public long getDroppedPackets()
+	{ return this.droppedPackets.get(); }
+	
+	/**
+	 * Send an ARP request packet for an IP, and schedule the request to be 
+	 * updated again in RETRANSMIT_INTERVAL milliseconds if no reply has been 
+	 * received. Timeout an ARP request if MAX_SEND_COUNT request packets have
+	 * been sent and no reply has been received. 
+	 * @param request a pending ARP request
+	 */
+	private void updateArpRequest(final ArpRequest request)
 	{
-		while (true)
+		// Requests are updated by the scheduler and by the threads processing
+		// packets
+		Collection<byte[]> goback = null;
+		synchronized(request)
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
+			if (request.isClosed())
+			{ return; }
 			
-			// Send ARP request packets and timeout ARP requests
-			for (ArpRequest request : this.requests.values())
-			{ this.updateArpRequest(request); }
-			
-			// Timeout ARP entries
-			for (ArpEntry entry : this.entries.values())
+			if (request.getSentCount() >= MAX_SEND_COUNT)
+			{
+				this.requests.remove(request.getIpAddress(), request);
+				goback = this.close(request);
+			}
+			else
 			{
-				if ((System.currentTimeMillis() - entry.getTimeAdded()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getIp()); }
+				// Send ARP request packet
+				this.sendArpRequest(request);
+				request.incrementSent();
+				request.setRetransmit(this.router.getScheduler().schedule(
+						new Runnable()
+						{
+							public void run()
+							{ updateArpRequest(request); }
+						}, RETRANSMIT_INTERVAL));
 			}
 		}
-	}
-	
-	/**
-	 * Send an ARP request packet for an IP if one second has elapsed and no
-	 * reply has been received. Timeout an ARP request if MAX_SEND_COUNT
-	 * request packets have been sent and no reply has been received. 
-	 * @param request a pending ARP request
-	 */
-	private void updateArpRequest(ArpRequest request)
-	{
-		if ((System.currentTimeMillis() - request.getLastTimeSent()) 
-				< 1000)
-		{ return; }
 		
-		if (request.getSentCount() >= MAX_SEND_COUNT)
+		if (goback != null)
 		{
 			/*********************************************************/
 		    /* TODO: send ICMP host unreachable to the source        */ 
 		    /* address of all packets waiting on this request        */
 			
 		    /*********************************************************/
-		  List<Ethernet> goback = request.getWaitingPackets();
-		  for (Ethernet gbpacket : goback){
+		  for (byte[] frame : goback){
+		  	// Packets are only decoded if an ICMP error is sent for them
+		  	Ethernet gbpacket = new Ethernet();
+		  	gbpacket.deserialize(frame, 0, frame.length);
 		  	router.sendICMP(router.DEST_HOST_UNREACHABLE,gbpacket);
 		  }
-			
-			this.requests.remove(request.getIpAddress());
-		}
-		else
-		{
-			// Send ARP request packet
-			this.sendArpRequest(request);
-			request.incrementSent();
 		}
 	}
 	
@@ -117,12 +201,171 @@ public class ArpCache implements Runnable
 	 * @return pending request for the specified IP address; null if none exists
 	 */
 	public ArpRequest insert(MACAddress mac, int ip)
+	{ return this.insert(mac, ip, null); }
+	
+	/**
+	 * Insert an entry in the ARP cache for a specific IP address, MAC address
+	 * pair, and return any pending request.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param iface interface on which the mapping was learned, over which the
+	 *        entry is refreshed while it is in use; null if the entry should 
+	 *        not be refreshed
+	 * @return pending request for the specified IP address; null if none exists
+	 */
+	public ArpRequest insert(MACAddress mac, int ip, Iface iface)
 	{
+		// Add the entry before removing the request, so a packet that misses 
+		// the closed request finds the entry
+		final ArpEntry entry = new ArpEntry(mac, ip, iface);
+		ArpEntry replaced = this.entries.put(ip, entry);
+		this.version.incrementAndGet();
+		if (replaced != null)
+		{ replaced.cancelExpiry(); }
+		entry.setExpiry(this.router.getScheduler().schedule(new Runnable()
+			{
+				public void run()
+				{ expire(entry); }
+			}, TIMEOUT));
+		if (iface != null && this.refreshEnabled)
+		{ this.scheduleRefresh(entry, TIMEOUT - REFRESH_LEAD); }
+		
 		ArpRequest request = this.requests.remove(ip);
-		this.entries.put(ip, new ArpEntry(mac, ip));
+		if (request != null)
+		{ this.close(request); }
 		return request;
 	}
 	
+	/**
+	 * Close a request that has been resolved or has timed out, and stop 
+	 * counting the packets waiting on it against the queue limits.
+	 * @param request request to close
+	 * @return serialized Ethernet frames of the packets waiting on the request
+	 */
+	private Collection<byte[]> close(ArpRequest request)
+	{
+		synchronized(request)
+		{
+			if (!request.isClosed())
+			{
+				request.close();
+				this.queuedPackets.addAndGet(-request.getWaitingCount());
+				this.queuedBytes.addAndGet(-request.getWaitingBytes());
+			}
+			return request.getWaitingPackets();
+		}
+	}
+	
+	/**
+	 * Remove an entry from the cache when it times out, unless it has already
+	 * been replaced.
+	 * @param entry entry that has timed out
+	 */
+	private void expire(ArpEntry entry)
+	{
+		if (this.entries.remove(entry.getIp(), entry))
+		{ this.version.incrementAndGet(); }
+	}
+	
+	private void scheduleRefresh(final ArpEntry entry, long delay)
+	{
+		entry.setRefresh(this.router.getScheduler().schedule(new Runnable()
+			{
+				public void run()
+				{ refresh(entry); }
+			}, delay));
+	}
+	
+	/**
+	 * Send a unicast ARP request packet to refresh an entry that is about to
+	 * time out, if packets have been forwarded using the entry since it was
+	 * added or last refreshed, and try again after RETRANSMIT_INTERVAL 
+	 * milliseconds if the entry has not been replaced by then. Idle entries
+	 * are left to time out without sending any packets.
+	 * @param entry entry to refresh
+	 */
+	private void refresh(ArpEntry entry)
+	{
+		if (this.entries.get(entry.getIp()) != entry || !entry.clearUsed())
+		{ return; }
+		
+		this.sendArpRequest(entry.getIp(), entry.getIface(), 
+				entry.getMac().toLong());
+		long remaining = entry.getTimeAdded() + TIMEOUT 
+				- System.currentTimeMillis();
+		if (remaining > RETRANSMIT_INTERVAL)
+		{ this.scheduleRefresh(entry, RETRANSMIT_INTERVAL); }
+	}
+	
+	/**
+	 * Learn the MAC address of the sender of an ARP packet, if snooping is 
+	 * enabled. Only senders on the subnet of the interface on which the 
+	 * packet was received are learned; probes without a sender IP address,
+	 * and packets claiming one of the interface's own addresses, are ignored.
+	 * An existing entry is only replaced if the sender's MAC address has 
+	 * changed, so repeated requests from a host do not invalidate cached 
+	 * forwarding decisions.
+	 * @param arpPacket ARP packet received by the router
+	 * @param inIface interface on which the packet was received
+	 * @return pending request for the sender's IP address, which the caller
+	 *         must complete; null if none exists or nothing was learned
+	 */
+	public ArpRequest snoop(ARP arpPacket, Iface inIface)
+	{
+		if (!this.snoopingEnabled 
+				|| arpPacket.getHardwareType() != ARP.HW_TYPE_ETHERNET
+				|| arpPacket.getProtocolType() != ARP.PROTO_TYPE_IP
+				|| arpPacket.getHardwareAddressLength() 
+					!= Ethernet.DATALAYER_ADDRESS_LENGTH
+				|| arpPacket.getProtocolAddressLength() != 4)
+		{ return null; }
+		
+		byte[] spa = arpPacket.getSenderProtocolAddress();
+		int senderIp = (spa[0] & 0xff) << 24 | (spa[1] & 0xff) << 16
+				| (spa[2] & 0xff) << 8 | (spa[3] & 0xff);
+		long senderMac = arpPacket.getSenderHardwareAddressAsLong();
+		int mask = inIface.getSubnetMask();
+		if (0 == senderIp || senderIp == inIface.getIpAddress()
+				|| (senderIp & mask) != (inIface.getIpAddress() & mask)
+				|| (senderMac & (1L << 40)) != 0
+				|| senderMac == inIface.getMacAddress().toLong())
+		{ return null; }
+		
+		ArpEntry existing = this.lookup(senderIp);
+		if (existing != null && existing.getMac().toLong() == senderMac)
+		{ return null; }
+		return this.insert(MACAddress.valueOf(senderMac), senderIp, inIface);
+	}
+	
+	/**
+	 * Announce an interface's IP and MAC addresses to directly connected hosts
+	 * by sending ANNOUNCE_COUNT gratuitous ARP requests, ANNOUNCE_INTERVAL 
+	 * milliseconds apart, so their caches are populated before they have 
+	 * traffic for the router.
+	 * @param iface interface to announce
+	 */
+	public void announce(final Iface iface)
+	{
+		for (int i = 0; i < ANNOUNCE_COUNT; i++)
+		{
+			this.router.getScheduler().schedule(new Runnable()
+				{
+					public void run()
+					{
+						sendArpRequest(iface.getIpAddress(), iface, 
+								MACAddress.BROADCAST);
+					}
+				}, i * ANNOUNCE_INTERVAL);
+		}
+	}
+	
+	/**
+	 * @return number of times entries have been added to or removed from the
+	 *         cache; changes whenever the result of a lookup may have changed
+	 */
+	public long getVersion()
+	{ return this.version.get(); }
+	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
 	 * @param ip IP address whose MAC address is desired
@@ -139,15 +382,95 @@ public class ArpCache implements Runnable
 	 * @param nextHopIP the IP address whose MAC should be determined
 	 */
 	public void waitForArp(Ethernet etherPacket, Iface outIface, int nextHopIp)
+	{ this.waitForArp(etherPacket.serialize(), outIface, nextHopIp); }
+	
+	/**
+	 * Adds an ARP request to the ARP request queue. Adds the packet to the 
+	 * list of packets waiting for this request to be resolved, unless it 
+	 * would exceed the queue limits.
+	 * @param frame serialized Ethernet frame of the packet waiting for the MAC
+	 *        for it's next hop IP; all fields should be filled in except for
+	 *        the destination MAC address
+	 * @param outIface interface out which the packet will be sent
+	 * @param nextHopIP the IP address whose MAC should be determined
+	 */
+	public void waitForArp(byte[] frame, Iface outIface, int nextHopIp)
 	{
-		ArpRequest request = this.requests.get(nextHopIp);
-		if (null == request)
+		while (true)
 		{
-			request = new ArpRequest(nextHopIp, outIface);
-			this.requests.put(nextHopIp, request);
+			ArpRequest request = this.requests.get(nextHopIp);
+			boolean created = false;
+			if (null == request)
+			{
+				// A reply may have been received by another thread since the 
+				// caller checked the cache
+				ArpEntry entry = this.lookup(nextHopIp);
+				if (entry != null)
+				{
+					entry.getMac().writeTo(frame, 0);
+					this.router.sendRawPacket(frame, outIface);
+					return;
+				}
+				
+				ArpRequest newRequest = new ArpRequest(nextHopIp, outIface);
+				request = this.requests.putIfAbsent(nextHopIp, newRequest);
+				if (null == request)
+				{
+					request = newRequest;
+					created = true;
+				}
+			}
+			
+			// Try again if the request was closed by another thread
+			if (!this.enqueuePacket(request, frame))
+			{ continue; }
+			
+			// Send the first ARP request packet once the packet is queued; 
+			// later packets are sent by the scheduler
+			if (created)
+			{ this.updateArpRequest(request); }
+			return;
+		}
+	}
+	
+	/**
+	 * Add a packet to the list of packets waiting on a request, applying the
+	 * drop policy if the packet would exceed the queue limits. The limits on
+	 * all requests are approximate when several threads queue packets at once.
+	 * @param request request the packet is waiting on
+	 * @param frame serialized Ethernet frame of the packet
+	 * @return true if the packet was queued or dropped; false if the request 
+	 *         is closed
+	 */
+	private boolean enqueuePacket(ArpRequest request, byte[] frame)
+	{
+		synchronized(request)
+		{
+			if (request.isClosed())
+			{ return false; }
+			
+			while (request.getWaitingCount() >= MAX_QUEUED_PACKETS_PER_REQUEST
+					|| request.getWaitingBytes() + frame.length 
+						> MAX_QUEUED_BYTES_PER_REQUEST
+					|| this.queuedPackets.get() >= MAX_QUEUED_PACKETS
+					|| this.queuedBytes.get() + frame.length 
+						> MAX_QUEUED_BYTES)
+			{
+				this.droppedPackets.incrementAndGet();
+				byte[] oldest = null;
+				if (DROP_OLDEST == this.dropPolicy)
+				{ oldest = request.dequeueOldestPacket(); }
+				if (null == oldest)
+				{ return true; }
+				this.queuedPackets.decrementAndGet();
+				this.queuedBytes.addAndGet(-oldest.length);
+			}
+			
+			request.enqueuePacket(frame);
+			this.queuedPackets.incrementAndGet();
+			this.queuedBytes.addAndGet(frame.length);
+			return true;
 		}
-		request.enqueuePacket(etherPacket);
-		this.updateArpRequest(request);
 	}
 	
 	/**
@@ -155,14 +478,25 @@ public class ArpCache implements Runnable
 	 * @param request pending request for obtaining the MAC address for an IP
 	 */
 	private void sendArpRequest(ArpRequest request)
+	{ 
+		this.sendArpRequest(request.getIpAddress(), request.getIface(), 
+				MACAddress.BROADCAST); 
+	}
+	
+	/**
+	 * Send an ARP request packet for an IP. A request for the interface's own
+	 * IP address is a gratuitous ARP.
+	 * @param ip IP address whose MAC address is requested
+	 * @param iface interface out which the request is sent
+	 * @param dstMac destination MAC address of the request; the broadcast
+	 *        address, or the known MAC address when refreshing an entry
+	 */
+	private void sendArpRequest(int ip, Iface iface, long dstMac)
 	{
 		// Populate Ethernet header
 		Ethernet etherPkt = new Ethernet();
-		byte[] broadcastMac = {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
-				(byte)0xFF, (byte)0xFF};
-		etherPkt.setDestinationMACAddress(broadcastMac);
-		etherPkt.setSourceMACAddress(
-				request.getIface().getMacAddress().toBytes());
+		etherPkt.setDestinationMACAddress(dstMac);
+		etherPkt.setSourceMACAddress(iface.getMacAddress().toLong());
 		etherPkt.setEtherType(Ethernet.TYPE_ARP);
 		
 		// Populate ARP header
@@ -172,12 +506,11 @@ public class ArpCache implements Runnable
 		arpPkt.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
 		arpPkt.setProtocolAddressLength((byte)4);
 		arpPkt.setOpCode(ARP.OP_REQUEST);
-		arpPkt.setSenderHardwareAddress(
-				request.getIface().getMacAddress().toBytes());
-		arpPkt.setSenderProtocolAddress(request.getIface().getIpAddress());
+		arpPkt.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arpPkt.setSenderProtocolAddress(iface.getIpAddress());
         arpPkt.setTargetHardwareAddress(
                 new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
-		arpPkt.setTargetProtocolAddress(request.getIpAddress());
+		arpPkt.setTargetProtocolAddress(ip);
 		
 		// Stack headers
 		etherPkt.setPayload(arpPkt);
@@ -185,7 +518,7 @@ public class ArpCache implements Runnable
 		// Send ARP request
 		System.out.println("Send ARP request");
 		System.out.println(etherPkt.toString());
-		this.router.sendPacket(etherPkt, request.getIface());
+		this.router.sendPacket(etherPkt, iface);
 	}
 	
 	/**
@@ -197,8 +530,9 @@ public class ArpCache implements Runnable
 	{
 		// Populate Ethernet header
 		Ethernet etherReply = new Ethernet();
-		etherReply.setDestinationMACAddress(etherPacket.getSourceMACAddress());
-		etherReply.setSourceMACAddress(iface.getMacAddress().toBytes());
+		etherReply.setDestinationMACAddress(
+				etherPacket.getSourceMACAddressAsLong());
+		etherReply.setSourceMACAddress(iface.getMacAddress().toLong());
 		etherReply.setEtherType(Ethernet.TYPE_ARP);
 		
 		// Populate ARP header
@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.sr;
 
+import java.util.concurrent.ScheduledFuture;
+
 import net.floodlightcontroller.util.MACAddress;
 
 /**
@@ -14,19 +16,45 @@ public class ArpEntry
 	/** IP address corresponding to MAC address */
 	private int ip;
 	
+	/** Interface on which the mapping was learned; null if the mapping is not
+	 * refreshed */
+	private Iface iface;
+	
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
 	
+	/** Event that removes the entry from the cache when it times out */
+	private volatile ScheduledFuture<?> expiry;
+	
+	/** Event that refreshes the entry before it times out */
+	private volatile ScheduledFuture<?> refresh;
+	
+	/** Whether packets have been forwarded using the mapping since it was 
+	 * created or last refreshed */
+	private volatile boolean used;
+	
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, null); }
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param iface interface on which the mapping was learned; null if the 
+	 *        mapping should not be refreshed
+	 */
+	public ArpEntry(MACAddress mac, int ip, Iface iface)
 	{
 		this.mac = mac;
 		this.ip = ip;
+		this.iface = iface;
 		this.timeAdded = System.currentTimeMillis();
+		this.used = false;
 	}
 	
 	/**
@@ -41,9 +69,65 @@ public class ArpEntry
 	public int getIp()
 	{ return this.ip; }
 	
+	/**
+	 * @return interface on which the mapping was learned; null if the mapping
+	 *         is not refreshed
+	 */
+	public Iface getIface()
+	{ return this.iface; }
+	
+	/**
+	 * Record that a packet is being forwarded using the mapping.
+	 */
+	public void markUsed()
+	{
+		// Avoid writing the shared flag on every packet
+		if (!this.used)
+		{ this.used = true; }
+	}
+	
+	/**
+	 * Clear the record of whether the mapping has been used.
+	 * @return true if packets were forwarded using the mapping since it was
+	 *         created or this method was last called
+	 */
+	public boolean clearUsed()
+	{
+		boolean used = this.used;
+		this.used = false;
+		return used;
+	}
+	
 	/**
 	 * @return time (in milliseconds since the epoch) the mapping was created
 	 */
 	public long getTimeAdded()
 	{ return this.timeAdded; }
+	
+	/**
+	 * @param expiry event that removes the entry from the cache when it times
+	 *        out
+	 */
+	public void setExpiry(ScheduledFuture<?> expiry)
+	{ this.expiry = expiry; }
+	
+	/**
+	 * @param refresh event that refreshes the entry before it times out
+	 */
+	public void setRefresh(ScheduledFuture<?> refresh)
+	{ this.refresh = refresh; }
+	
+	/**
+	 * Cancel the events that refresh the entry and remove it from the cache,
+	 * if any.
+	 */
+	public void cancelExpiry()
+	{
+		ScheduledFuture<?> expiry = this.expiry;
+		if (expiry != null)
+		{ expiry.cancel(false); }
+		ScheduledFuture<?> refresh = this.refresh;
+		if (refresh != null)
+		{ refresh.cancel(false); }
+	}
 }
@@ -1,9 +1,9 @@
 package edu.wisc.cs.sdn.sr;
 
-import java.util.LinkedList;
-import java.util.List;
-
-import net.floodlightcontroller.packet.Ethernet;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * A pending request for obtaining the MAC address for an IP using ARP. 
@@ -17,14 +17,22 @@ public class ArpRequest
 	/** Interface over which the resolution should occur */
 	private Iface iface;
 	
-	/** Last time an ARP request packet was sent for this request */ 
-	private long lastTimeSent; 
-	
 	/** Number of times an ARP request packet has been sent for this request */
 	private int sentCount; 
 	
-	/** List of packets waiting on this request to be resolved */
-	private List<Ethernet> waitingPackets;
+	/** Serialized Ethernet frames of the packets waiting on this request to
+	 * be resolved, oldest first */
+	private Deque<byte[]> waitingPackets;
+	
+	/** Total length of the packets waiting on this request to be resolved */
+	private int waitingBytes;
+	
+	/** Whether the request has been resolved or has timed out */
+	private boolean closed;
+	
+	/** Event that sends the next ARP request packet or times out the request;
+	 * null if none is scheduled */
+	private ScheduledFuture<?> retransmit;
 	
 	/**
 	 * Create a request for a pending resolution of an IP address's MAC address.
@@ -35,9 +43,11 @@ public class ArpRequest
 	{
 		this.ipAddress = ip;
 		this.iface = iface;
-		this.lastTimeSent = 0;
 		this.sentCount = 0;
-		this.waitingPackets = new LinkedList<Ethernet>();
+		this.waitingPackets = new ArrayDeque<byte[]>();
+		this.waitingBytes = 0;
+		this.closed = false;
+		this.retransmit = null;
 	}
 	
 	/**
@@ -52,13 +62,6 @@ public class ArpRequest
 	public Iface getIface()
 	{ return this.iface; }
 	
-	/**
-	 * @return the last time (in milliseconds since the epoch) an ARP request 
-	 * packet was sent for this request
-	 */
-	public long getLastTimeSent()
-	{ return this.lastTimeSent; }
-	
 	/**
 	 * @return number of times an ARP request packet has been sent
 	 */
@@ -66,27 +69,84 @@ public class ArpRequest
 	{ return this.sentCount; }
 	
 	/**
-	 * @return list of packets waiting on this request to be resolved
+	 * @return serialized Ethernet frames of the packets waiting on this 
+	 * request to be resolved, oldest first; must only be iterated once the 
+	 * request is closed
 	 */
-	public List<Ethernet> getWaitingPackets()
+	public synchronized Collection<byte[]> getWaitingPackets()
 	{ return this.waitingPackets; }
 	
 	/**
-	 * Update the last time an ARP request packet was sent to the current time
-	 * (in milliseconds since the epoch) and increment the request packet count.
+	 * @return number of packets waiting on this request to be resolved
 	 */
-	public void incrementSent()
-	{
-		this.lastTimeSent = System.currentTimeMillis();
-		this.sentCount++;
-	}
+	public synchronized int getWaitingCount()
+	{ return this.waitingPackets.size(); }
+	
+	/**
+	 * @return total length of the packets waiting on this request to be 
+	 * resolved
+	 */
+	public synchronized int getWaitingBytes()
+	{ return this.waitingBytes; }
+	
+	/**
+	 * Increment the number of times an ARP request packet has been sent.
+	 */
+	public synchronized void incrementSent()
+	{ this.sentCount++; }
 	
 	/**
 	 * Add a packet to the list of packets waiting on this request to be
 	 * resolved. All fields of the packet should be correctly filled in except 
 	 * for the destination MAC address in the Ethernet header.
-	 * @param etherPacket packet waiting on this request to be resolved
+	 * @param frame serialized Ethernet frame of the packet waiting on this 
+	 *        request to be resolved
+	 * @return true if the packet was added; false if the request is closed
+	 */
+	public synchronized boolean enqueuePacket(byte[] frame)
+	{
+		if (this.closed)
+		{ return false; }
+		this.waitingPackets.addLast(frame);
+		this.waitingBytes += frame.length;
+		return true;
+	}
+	
+	/**
+	 * Remove the packet that has been waiting on this request the longest.
+	 * @return serialized Ethernet frame of the removed packet; null if no 
+	 *         packets are waiting
+	 */
+	public synchronized byte[] dequeueOldestPacket()
+	{
+		byte[] frame = this.waitingPackets.pollFirst();
+		if (frame != null)
+		{ this.waitingBytes -= frame.length; }
+		return frame;
+	}
+	
+	/**
+	 * @param retransmit event that sends the next ARP request packet or times
+	 *        out the request
+	 */
+	public synchronized void setRetransmit(ScheduledFuture<?> retransmit)
+	{ this.retransmit = retransmit; }
+	
+	/**
+	 * Stop adding packets to the list of packets waiting on this request, 
+	 * because the request has been resolved or has timed out, and cancel any
+	 * pending retransmission.
+	 */
+	public synchronized void close()
+	{
+		this.closed = true;
+		if (this.retransmit != null)
+		{ this.retransmit.cancel(false); }
+	}
+	
+	/**
+	 * @return true if the request has been resolved or has timed out
 	 */
-	public void enqueuePacket(Ethernet etherPacket)
-	{ this.waitingPackets.add(etherPacket); }
+	public synchronized boolean isClosed()
+	{ return this.closed; }
 }
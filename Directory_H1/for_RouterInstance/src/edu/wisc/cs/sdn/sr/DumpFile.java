@@ -1,12 +1,21 @@
 package edu.wisc.cs.sdn.sr;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * A PCAP file to which packets sent and received by the router are logged.
+ * Packets dumped to standard output are written immediately. Packets dumped
+ * to a file are copied into a ring buffer and written by a background
+ * thread, so logging does not slow down packet processing; packets are
+ * dropped from the capture, and counted, if the ring buffer is full.
+ */
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
@@ -16,46 +25,144 @@ public class DumpFile
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
+
+	/** Length of the PCAP file header */
+	private static final int FILE_HEADER_LENGTH = 24;
+
+	/** Length of the header preceding each packet in a PCAP file */
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	/** Size (in bytes) of the ring buffer holding packets waiting to be
+	 * written; must be a power of two */
+	private static final int RING_SIZE = 8 * 1024 * 1024;
+
+	/** Size (in bytes) of the buffer in front of a capture file */
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+	/** Maximum time (in milliseconds) packets are buffered before they are
+	 * flushed to a capture file */
+	private static final int FLUSH_INTERVAL = 1000;
+
 	private FileOutputStream fileStream;
 	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
+
+	/** Name of the first capture file; null if writing to standard output */
+	private String filename;
+
+	/** Size (in bytes) and age (in milliseconds) after which packets are
+	 * written to a new capture file; 0 for no limit */
+	private long maxFileSize;
+	private long rotateInterval;
+
+	/** Number of capture files opened after the first file */
+	private int rotateCount;
+
+	/** Number of bytes written to, and time (in milliseconds since the epoch)
+	 * of the first packet in, the current capture file */
+	private long fileSize;
+	private long fileStartTime;
+
+	/** Packet records waiting to be written, stored between ringHead and
+	 * ringTail (modulo the size of the ring); null if packets are written
+	 * immediately; guarded by itself */
+	private byte[] ring;
+	private long ringHead;
+	private long ringTail;
+
+	/** Whether the writer thread is waiting for packets; guarded by ring */
+	private boolean writerWaiting;
+
+	/** Whether the file is being closed; guarded by ring */
+	private boolean closed;
+
+	/** Number of packets not captured because the ring was full; guarded by
+	 * ring */
+	private long droppedPackets;
+
+	/** Thread writing packet records from the ring to the capture file */
+	private Thread writerThread;
+
+	private DumpFile(String filename, long maxFileSize, long rotateInterval)
+			throws FileNotFoundException
 	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		this.filename = filename;
+		this.maxFileSize = maxFileSize;
+		this.rotateInterval = rotateInterval;
+		this.rotateCount = 0;
+		this.openFile(filename);
+
+		this.ring = new byte[RING_SIZE];
+		this.ringHead = 0;
+		this.ringTail = 0;
+		this.writerWaiting = false;
+		this.closed = false;
+		this.droppedPackets = 0;
+		this.writerThread = new Thread(new Runnable()
+			{
+				public void run()
+				{ writeRecords(); }
+			}, "sr-dumpfile");
+		this.writerThread.setDaemon(true);
 	}
-	
+
 	private DumpFile()
 	{
 		this.fileStream = null;
 		outStream = new DataOutputStream(System.out);
+		this.ring = null;
 	}
-	
+
 	public static DumpFile open(String filename)
+	{ return open(filename, 0, 0); }
+
+	/**
+	 * Open a PCAP file for logging packets.
+	 * @param filename name of the file; "-" for standard output
+	 * @param maxFileSize size (in bytes) after which packets are written to a
+	 *        new file, named by appending a sequence number to filename; 0 for
+	 *        no limit
+	 * @param rotateInterval time (in milliseconds) after which packets are
+	 *        written to a new file; 0 for no limit
+	 * @return the opened file; null if the file could not be opened
+	 */
+	public static DumpFile open(String filename, long maxFileSize,
+			long rotateInterval)
 	{
 		DumpFile dumpFile = null;
 		if (filename.equals("-"))
 		{ dumpFile = new DumpFile(); }
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			try
+			{
+				dumpFile = new DumpFile(filename, maxFileSize, rotateInterval);
+			}
+			catch (FileNotFoundException e)
 			{
 				System.err.println("Cannot open " + filename);
 				return null;
 			}
 		}
-		
+
 		if (!dumpFile.writeHeader())
 		{ return null; }
+		if (dumpFile.writerThread != null)
+		{ dumpFile.writerThread.start(); }
 		return dumpFile;
 	}
-	
+
+	private void openFile(String name) throws FileNotFoundException
+	{
+		this.fileStream = new FileOutputStream(name);
+		this.outStream = new DataOutputStream(new BufferedOutputStream(
+				this.fileStream, WRITE_BUFFER_SIZE));
+		this.fileSize = 0;
+		this.fileStartTime = 0;
+	}
+
 	private boolean writeHeader()
-	{        
-		try 
+	{
+		try
 		{
 			this.outStream.writeInt(TCPDUMP_MAGIC);
 			this.outStream.writeShort(PCAP_VERSION_MAJOR);
@@ -65,6 +172,7 @@ public class DumpFile
 			this.outStream.writeInt(SNAP_LEN);
 			this.outStream.writeInt(LINKTYPE_ETHERNET);
 	        this.outStream.flush();
+	        this.fileSize = FILE_HEADER_LENGTH;
 	        return true;
 		}
 		catch (IOException e)
@@ -74,28 +182,238 @@ public class DumpFile
 		}
 
 	}
-	
+
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+
+	public void dump(byte[] buf, int offset, int length)
+	{ this.dump(ByteBuffer.wrap(buf, offset, length)); }
+
+	/**
+	 * Log a packet held in a buffer, which may be a direct buffer.
+	 * @param buf buffer containing the packet between its position and limit;
+	 *        the buffer's position is not changed
+	 */
+	public void dump(ByteBuffer buf)
+	{
+		long now = System.currentTimeMillis();
+		int sec = (int)(now/1000);
+		int usec = (int)((now % 1000)*1000);
+		int length = buf.remaining();
+
+		if (null == this.ring)
+		{
+			byte[] data = new byte[length];
+			buf.duplicate().get(data);
+			this.write(sec, usec, data, 0, length);
+			return;
+		}
+
+		synchronized(this.ring)
+		{
+			long used = this.ringTail - this.ringHead;
+			if (this.closed
+					|| RECORD_HEADER_LENGTH + length > this.ring.length - used)
+			{
+				this.droppedPackets++;
+				return;
+			}
+
+			long tail = this.ringTail;
+			tail = this.putRingInt(tail, sec);
+			tail = this.putRingInt(tail, usec);
+			tail = this.putRingInt(tail, length);
+			tail = this.putRingInt(tail, length);
+			int start = (int)tail & (this.ring.length - 1);
+			int first = Math.min(length, this.ring.length - start);
+			ByteBuffer src = buf.duplicate();
+			src.get(this.ring, start, first);
+			src.get(this.ring, 0, length - first);
+			this.ringTail = tail + length;
+
+			if (this.writerWaiting)
+			{ this.ring.notify(); }
+		}
+	}
+
+	/**
+	 * Write a packet record immediately.
+	 */
+	private synchronized void write(int sec, int usec, byte[] buf,
+			int offset, int length)
+	{
 		try
 		{
 			this.outStream.writeInt(sec);
 			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(length);
+			this.outStream.writeInt(length);
+			this.outStream.write(buf, offset, length);
 			this.outStream.flush();
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
 	}
-	
+
+	private long putRingInt(long position, int value)
+	{
+		int mask = this.ring.length - 1;
+		this.ring[(int)position & mask] = (byte)(value >>> 24);
+		this.ring[(int)(position + 1) & mask] = (byte)(value >>> 16);
+		this.ring[(int)(position + 2) & mask] = (byte)(value >>> 8);
+		this.ring[(int)(position + 3) & mask] = (byte)value;
+		return position + 4;
+	}
+
+	private int getRingInt(long position)
+	{
+		int mask = this.ring.length - 1;
+		return (this.ring[(int)position & mask] & 0xff) << 24
+				| (this.ring[(int)(position + 1) & mask] & 0xff) << 16
+				| (this.ring[(int)(position + 2) & mask] & 0xff) << 8
+				| (this.ring[(int)(position + 3) & mask] & 0xff);
+	}
+
+	/**
+	 * Write packet records from the ring to the capture file until the file
+	 * is closed. Records are written without holding the ring's lock, so
+	 * packets can be dumped in the meantime; buffered records are flushed
+	 * when the ring is empty or FLUSH_INTERVAL has elapsed since the last
+	 * flush.
+	 */
+	private void writeRecords()
+	{
+		long lastFlush = System.currentTimeMillis();
+		boolean unflushed = false;
+		try
+		{
+			while (true)
+			{
+				long head, tail;
+				boolean closed;
+				synchronized(this.ring)
+				{
+					if (this.ringHead == this.ringTail && !this.closed
+							&& !unflushed)
+					{
+						this.writerWaiting = true;
+						try
+						{ this.ring.wait(FLUSH_INTERVAL); }
+						catch (InterruptedException e)
+						{ }
+						this.writerWaiting = false;
+					}
+					head = this.ringHead;
+					tail = this.ringTail;
+					closed = this.closed;
+				}
+
+				for (long position = head; position < tail; )
+				{
+					position = this.writeRecord(position);
+					unflushed = true;
+				}
+
+				synchronized(this.ring)
+				{ this.ringHead = tail; }
+
+				long now = System.currentTimeMillis();
+				if (unflushed
+						&& (head == tail || now - lastFlush >= FLUSH_INTERVAL))
+				{
+					this.outStream.flush();
+					unflushed = false;
+					lastFlush = now;
+				}
+
+				if (closed && head == tail)
+				{ break; }
+			}
+		}
+		catch (IOException e)
+		{
+			// Stop writing; further packets are dropped once the ring fills
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write one packet record from the ring to the capture file, first
+	 * switching to a new file if the current file is too large or too old.
+	 * @param position position of the record in the ring
+	 * @return position of the next record in the ring
+	 */
+	private long writeRecord(long position) throws IOException
+	{
+		int sec = this.getRingInt(position);
+		int usec = this.getRingInt(position + 4);
+		int length = this.getRingInt(position + 8);
+		long time = sec * 1000L + usec / 1000;
+
+		if (0 == this.fileStartTime)
+		{ this.fileStartTime = time; }
+		if ((this.maxFileSize > 0 && this.fileSize > FILE_HEADER_LENGTH
+					&& this.fileSize + RECORD_HEADER_LENGTH + length
+						> this.maxFileSize)
+				|| (this.rotateInterval > 0
+					&& time - this.fileStartTime >= this.rotateInterval))
+		{
+			this.outStream.close();
+			this.rotateCount++;
+			this.openFile(this.filename + "." + this.rotateCount);
+			if (!this.writeHeader())
+			{ throw new IOException("Cannot write header to new dump file"); }
+			this.fileStartTime = time;
+		}
+
+		int mask = this.ring.length - 1;
+		int start = (int)position & mask;
+		int first = Math.min(RECORD_HEADER_LENGTH + length,
+				this.ring.length - start);
+		this.outStream.write(this.ring, start, first);
+		this.outStream.write(this.ring, 0, RECORD_HEADER_LENGTH + length - first);
+		this.fileSize += RECORD_HEADER_LENGTH + length;
+		return position + RECORD_HEADER_LENGTH + length;
+	}
+
+	/**
+	 * @return number of packets not captured because they were dumped faster
+	 *         than they could be written
+	 */
+	public long getDroppedPackets()
+	{
+		if (null == this.ring)
+		{ return 0; }
+		synchronized(this.ring)
+		{ return this.droppedPackets; }
+	}
+
 	public void close()
 	{
+		if (this.ring != null)
+		{
+			// Wait for the writer to write all packets already dumped
+			synchronized(this.ring)
+			{
+				this.closed = true;
+				this.ring.notify();
+			}
+			try
+			{ this.writerThread.join(); }
+			catch (InterruptedException e)
+			{ }
+
+			if (this.droppedPackets > 0)
+			{
+				System.err.println(String.format(
+						"%d packets dropped from dump file",
+						this.getDroppedPackets()));
+			}
+		}
+
 		try
 		{
 			this.outStream.flush();
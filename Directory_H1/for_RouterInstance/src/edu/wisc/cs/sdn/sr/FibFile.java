@@ -0,0 +1,200 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a route table, which loads much faster than the text
+ * format since addresses need no parsing. A snapshot contains:
+ * <ul>
+ * <li>a header: MAGIC (4 bytes), VERSION (2 bytes), and the number of
+ *     interface names (2 bytes);</li>
+ * <li>the interface names, each a length (1 byte) followed by ASCII
+ *     characters;</li>
+ * <li>the number of entries (4 bytes), followed by the entries, each
+ *     RECORD_LENGTH bytes: destination, gateway and subnet mask (4 bytes
+ *     each), index of the interface name (2 bytes), hop count (1 byte), and
+ *     a reserved byte.</li>
+ * </ul>
+ * All values are in network byte order. The equal-cost paths for a prefix
+ * are stored as consecutive entries.
+ */
+public class FibFile
+{
+	/** First bytes of a snapshot: "SRTB" */
+	public static final int MAGIC = 0x53525442;
+
+	/** Version of the snapshot format */
+	public static final short VERSION = 1;
+
+	/** Length of an entry in bytes */
+	private static final int RECORD_LENGTH = 16;
+
+	private FibFile()
+	{ }
+
+	/**
+	 * Determine whether a file's contents are a snapshot.
+	 * @param data contents of the file, starting at the buffer's position
+	 * @return true if the contents start with MAGIC, otherwise false
+	 */
+	public static boolean isSnapshot(ByteBuffer data)
+	{
+		return data.remaining() >= 4
+				&& MAGIC == data.getInt(data.position());
+	}
+
+	/**
+	 * Read the routes in a snapshot.
+	 * @param data contents of the snapshot, starting at the buffer's position
+	 * @param maxPaths maximum number of paths for a prefix
+	 * @return the routes; null if the snapshot is invalid
+	 */
+	public static PrefixTrie read(ByteBuffer data, int maxPaths)
+	{
+		try
+		{
+			if (data.getInt() != MAGIC)
+			{
+				System.err.println("Invalid route table snapshot");
+				return null;
+			}
+			short version = data.getShort();
+			if (version != VERSION)
+			{
+				System.err.println("Unsupported route table snapshot version "
+						+ version);
+				return null;
+			}
+
+			String[] ifaceNames = new String[data.getShort() & 0xffff];
+			for (int i = 0; i < ifaceNames.length; i++)
+			{
+				byte[] name = new byte[data.get() & 0xff];
+				data.get(name);
+				ifaceNames[i] = new String(name, StandardCharsets.US_ASCII);
+			}
+
+			int count = data.getInt();
+			if (count < 0 || (long)count * RECORD_LENGTH > data.remaining())
+			{
+				System.err.println("Truncated route table snapshot");
+				return null;
+			}
+			PrefixTrie.Builder builder = new PrefixTrie.Builder(maxPaths);
+			for (int i = 0; i < count; i++)
+			{
+				int dstIp = data.getInt();
+				int gwIp = data.getInt();
+				int maskIp = data.getInt();
+				int iface = data.getShort() & 0xffff;
+				int hopTime = data.get() & 0xff;
+				data.get(); // Reserved
+				if (iface >= ifaceNames.length)
+				{
+					System.err.println("Invalid interface in route table "
+							+ "snapshot entry " + i);
+					return null;
+				}
+				builder.add(new RouteTableEntry(dstIp, gwIp, maskIp,
+						ifaceNames[iface], hopTime));
+			}
+			return builder.build();
+		}
+		catch (BufferUnderflowException e)
+		{
+			System.err.println("Truncated route table snapshot");
+			return null;
+		}
+	}
+
+	/**
+	 * Write a snapshot of routes to a file, replacing the file if it exists.
+	 * @param trie the routes
+	 * @param filename name of the file
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public static boolean write(PrefixTrie trie, String filename)
+	{
+		// Number the interface names, and collect all the paths
+		Map<String,Short> ifaceIndexes = new HashMap<String,Short>();
+		List<String> ifaceNames = new ArrayList<String>();
+		List<RouteTableEntry> paths = new ArrayList<RouteTableEntry>();
+		int namesLength = 0;
+		for (RouteTableEntry entry : trie.getEntries())
+		{
+			for (RouteTableEntry path : trie.findPaths(
+					entry.getDestinationAddress(), entry.getMaskAddress()))
+			{
+				String name = path.getInterface();
+				if (!ifaceIndexes.containsKey(name))
+				{
+					byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+					if (bytes.length > 0xff || ifaceNames.size() > 0xffff)
+					{
+						System.err.println("Cannot write interface " + name
+								+ " to route table snapshot");
+						return false;
+					}
+					ifaceIndexes.put(name, (short)ifaceNames.size());
+					ifaceNames.add(name);
+					namesLength += 1 + bytes.length;
+				}
+				paths.add(path);
+			}
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(8 + namesLength + 4
+				+ paths.size() * RECORD_LENGTH);
+		data.putInt(MAGIC);
+		data.putShort(VERSION);
+		data.putShort((short)ifaceNames.size());
+		for (String name : ifaceNames)
+		{
+			byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+			data.put((byte)bytes.length);
+			data.put(bytes);
+		}
+		data.putInt(paths.size());
+		for (RouteTableEntry path : paths)
+		{
+			data.putInt(path.getDestinationAddress());
+			data.putInt(path.getGatewayAddress());
+			data.putInt(path.getMaskAddress());
+			data.putShort(ifaceIndexes.get(path.getInterface()));
+			data.put((byte)Math.min(path.getHopTime(), 0xff));
+			data.put((byte)0); // Reserved
+		}
+		data.flip();
+
+		FileChannel channel = null;
+		try
+		{
+			channel = FileChannel.open(Paths.get(filename),
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			while (data.hasRemaining())
+			{ channel.write(data); }
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		finally
+		{
+			if (channel != null)
+			{ try { channel.close(); } catch (IOException f) {}; }
+		}
+	}
+}
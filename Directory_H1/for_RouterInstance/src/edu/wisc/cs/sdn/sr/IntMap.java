@@ -0,0 +1,240 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from int keys, such as IP addresses, to objects, which
+ * stores keys unboxed in an open-addressing hash table. Lookups take no lock
+ * and allocate nothing; updates are serialized by a lock.
+ * <p>
+ * Once a slot in the table is claimed by a key, the slot's key never
+ * changes: removing the key leaves a marker in the slot, which is reused if
+ * the same key is added again, and markers are discarded when the table is
+ * rebuilt. A lookup that finds a key in a slot can therefore trust that the
+ * value it reads from the slot belongs to that key.
+ * @param <V> type of the values in the map
+ */
+public class IntMap<V>
+{
+	/** Smallest number of slots in a table */
+	private static final int MIN_CAPACITY = 16;
+
+	/** Value of a slot whose key has been removed */
+	private static final Object REMOVED = new Object();
+
+	/** A hash table; slots are claimed in place, and the table is replaced
+	 * when too many slots are claimed */
+	private static class Table
+	{
+		/** Key of each slot; only meaningful once the slot is claimed */
+		private final int[] keys;
+
+		/** Value of each slot: null if the slot is unclaimed, REMOVED if the
+		 * slot's key has been removed */
+		private final AtomicReferenceArray<Object> values;
+
+		private Table(int capacity)
+		{
+			this.keys = new int[capacity];
+			this.values = new AtomicReferenceArray<Object>(capacity);
+		}
+
+		/**
+		 * Find the slot claimed by a key, or the unclaimed slot where the key
+		 * would be added.
+		 * @return index of the slot
+		 */
+		private int find(int key)
+		{
+			int mask = this.keys.length - 1;
+			int index = hash(key) & mask;
+			while (true)
+			{
+				if (null == this.values.get(index) || this.keys[index] == key)
+				{ return index; }
+				index = (index + 1) & mask;
+			}
+		}
+	}
+
+	/** Current table; replaced, never modified, when rebuilt */
+	private volatile Table table;
+
+	/** Number of keys in the map; guarded by this */
+	private int size;
+
+	/** Number of claimed slots in the current table, including slots whose
+	 * keys have been removed; guarded by this */
+	private int claimed;
+
+	/**
+	 * Create an empty map.
+	 */
+	public IntMap()
+	{
+		this.table = new Table(MIN_CAPACITY);
+		this.size = 0;
+		this.claimed = 0;
+	}
+
+	private static int hash(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value for the key; null if the map does not contain the key
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		Table table = this.table;
+		int mask = table.keys.length - 1;
+		int index = hash(key) & mask;
+		while (true)
+		{
+			Object value = table.values.get(index);
+			if (null == value)
+			{ return null; }
+			if (table.keys[index] == key)
+			{ return (REMOVED == value) ? null : (V)value; }
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Set the value for a key.
+	 * @param key the key
+	 * @param value the new value; must not be null
+	 * @return the previous value for the key; null if there was none
+	 */
+	public synchronized V put(int key, V value)
+	{ return this.update(key, value, true); }
+
+	/**
+	 * Set the value for a key, unless the map already contains the key.
+	 * @param key the key
+	 * @param value the new value; must not be null
+	 * @return the current value for the key; null if the value was set
+	 */
+	public synchronized V putIfAbsent(int key, V value)
+	{ return this.update(key, value, false); }
+
+	@SuppressWarnings("unchecked")
+	private V update(int key, V value, boolean replace)
+	{
+		if (null == value)
+		{ throw new NullPointerException(); }
+
+		int index = this.table.find(key);
+		Object previous = this.table.values.get(index);
+		if (null == previous)
+		{
+			// Rebuild the table before claiming a slot if the table is too
+			// full, which leaves at least half the slots unclaimed
+			if (2 * (this.claimed + 1) > this.table.keys.length)
+			{
+				this.rebuild();
+				index = this.table.find(key);
+			}
+			this.claimed++;
+
+			// The key is written before the value is published
+			this.table.keys[index] = key;
+		}
+
+		if (null == previous || REMOVED == previous)
+		{
+			this.table.values.set(index, value);
+			this.size++;
+			return null;
+		}
+		if (replace)
+		{ this.table.values.set(index, value); }
+		return (V)previous;
+	}
+
+	/**
+	 * Remove a key from the map.
+	 * @param key the key
+	 * @return the value for the key; null if the map did not contain the key
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(int key)
+	{
+		int index = this.table.find(key);
+		Object previous = this.table.values.get(index);
+		if (null == previous || REMOVED == previous)
+		{ return null; }
+		this.table.values.set(index, REMOVED);
+		this.size--;
+		return (V)previous;
+	}
+
+	/**
+	 * Remove a key from the map only if its value is a specific object.
+	 * @param key the key
+	 * @param value the value the key must have
+	 * @return true if the key was removed, otherwise false
+	 */
+	public synchronized boolean remove(int key, V value)
+	{
+		int index = this.table.find(key);
+		if (this.table.values.get(index) != value || null == value)
+		{ return false; }
+		this.table.values.set(index, REMOVED);
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * @return number of keys in the map
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	/**
+	 * @return a snapshot of the values in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<V> values()
+	{
+		List<V> values = new ArrayList<V>(this.size);
+		for (int i = 0; i < this.table.keys.length; i++)
+		{
+			Object value = this.table.values.get(i);
+			if (value != null && value != REMOVED)
+			{ values.add((V)value); }
+		}
+		return values;
+	}
+
+	/**
+	 * Replace the table with one sized for the current keys, without the
+	 * slots of removed keys.
+	 */
+	private void rebuild()
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < 4 * (this.size + 1))
+		{ capacity <<= 1; }
+
+		Table old = this.table;
+		Table table = new Table(capacity);
+		for (int i = 0; i < old.keys.length; i++)
+		{
+			Object value = old.values.get(i);
+			if (null == value || REMOVED == value)
+			{ continue; }
+			int index = table.find(old.keys[i]);
+			table.keys[index] = old.keys[i];
+			table.values.set(index, value);
+		}
+		this.claimed = this.size;
+		this.table = table;
+	}
+}
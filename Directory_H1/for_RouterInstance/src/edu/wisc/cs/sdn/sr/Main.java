@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.sr;
 
+import net.floodlightcontroller.packet.BasePacket;
+
 import edu.wisc.cs.sdn.sr.vns.Command;
 import edu.wisc.cs.sdn.sr.vns.VNSComm;
 
@@ -17,10 +19,19 @@ public class Main
 		String user = null;
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
+		String snapshotFile = null;
+		boolean watchRouteTable = false;
 		String logfile = null;
 		String template = null;
 		short port = DEFAULT_PORT;
 		short topo = DEFAULT_TOPO;
+		int workers = 0;
+		String arpDropPolicy = null;
+		long logFileSize = 0;
+		long logRotateInterval = 0;
+		boolean arpRefresh = true;
+		boolean arpSnooping = false;
+		boolean arpAnnounce = false;
 		Router router = null;
 		VNSComm vnsComm = null;
 		
@@ -49,13 +60,56 @@ public class Main
 			{ logfile = args[++i]; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-D"))
+			{ snapshotFile = args[++i]; }
+			else if (arg.equals("-W"))
+			{ watchRouteTable = true; }
 			else if (arg.equals("-T"))
 			{ template = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-q"))
+			{ arpDropPolicy = args[++i]; }
+			else if (arg.equals("-C"))
+			{ logFileSize = Long.parseLong(args[++i]) * 1000 * 1000; }
+			else if (arg.equals("-G"))
+			{ logRotateInterval = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-a"))
+			{ arpRefresh = false; }
+			else if (arg.equals("-S"))
+			{ arpSnooping = true; }
+			else if (arg.equals("-g"))
+			{ arpAnnounce = true; }
 		}
 		
+		// Only decode the layers of a packet the router actually looks at
+		BasePacket.setLazyDecoding(true);
+		
 		// Create router instance
 		router = new Router(topo, host, user, template);
 		
+		// Choose which packets waiting on ARP requests to drop when full
+		if (arpDropPolicy != null)
+		{
+			if (arpDropPolicy.equals("tail"))
+			{ router.getArpCache().setDropPolicy(ArpCache.DROP_TAIL); }
+			else if (arpDropPolicy.equals("oldest"))
+			{ router.getArpCache().setDropPolicy(ArpCache.DROP_OLDEST); }
+			else
+			{
+				usage();
+				System.exit(1);
+			}
+		}
+		
+		// Refresh ARP entries in use before they time out, unless disabled
+		router.getArpCache().setRefreshEnabled(arpRefresh);
+		
+		// Learn neighbours' addresses from all ARP packets, and announce the
+		// router's own addresses at startup, if requested
+		router.getArpCache().setSnoopingEnabled(arpSnooping);
+		router.setAnnounceInterfaces(arpAnnounce);
+		
 		// Load routing table from file
 		/*if (null == template)
 		{ router.loadRouteTable(rtable); }
@@ -64,7 +118,8 @@ public class Main
 		// Open PCAP dump file for logging packets sent/received by the router
 		if (logfile != null)
 		{
-			router.setLogFile(DumpFile.open(logfile));
+			router.setLogFile(DumpFile.open(logfile, logFileSize, 
+					logRotateInterval));
 			if (null == router.getLogFile())
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -90,22 +145,58 @@ public class Main
 			System.out.println(String.format(
 					"Connected to new instantiation of topology template %s", 
 					template));
-			router.loadRouteTable("rtable." + host);
+			routeTableFile = "rtable." + host;
+			router.loadRouteTable(routeTableFile);
 		}
 		else if (routeTableFile != null)
 		{
 			// Read from specified routing table
 			router.loadRouteTable(routeTableFile);
 		}
+		
+		// Dump the loaded routing table, so it can be loaded faster next time
+		if (snapshotFile != null)
+		{
+			if (!router.saveRouteTable(snapshotFile))
+			{
+				System.err.println("Error writing routing table snapshot "
+						+ snapshotFile);
+				System.exit(1);
+			}
+			System.out.println("Wrote routing table snapshot "+snapshotFile);
+		}
 	
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 
 		// Call router init (for RIP subsystem, etc.)
 		router.init();
 		
+		// Reload the routing table whenever its file changes, if requested
+		if (watchRouteTable && routeTableFile != null)
+		{
+			if (!router.watchRouteTable(routeTableFile))
+			{
+				System.err.println("Error watching routing table file "
+						+ routeTableFile);
+				System.exit(1);
+			}
+			System.out.println("Watching routing table file "+routeTableFile);
+		}
+		
+		// Process packets on worker threads, if requested
+		if (workers > 0)
+		{
+			System.out.println(String.format(
+					"Processing packets with %d worker threads", workers));
+			vnsComm.startPipeline(workers);
+		}
+		
 		// Read messages from the server until the server closes the connection
 		while (vnsComm.readFromServer());
 		
+		// Finish processing packets already received
+		vnsComm.stopPipeline();
+		
 		// Shutdown the router
 		router.destroy();
 		
@@ -118,7 +209,13 @@ public class Main
 		System.out.println("Main [-h] [-v host] [-s server] [-p port]");
 		System.out.println("     [-T template_name] [-u username]");
 		System.out.println("     [-t topo_id] [-r routing_table]");
-		System.out.println("     [-l log_file]");
+		System.out.println("     [-D routing_table_snapshot (write after loading)]");
+		System.out.println("     [-W (reload static routing table when its file changes)]");
+		System.out.println("     [-l log_file] [-C log_file_size_MB]");
+		System.out.println("     [-G log_rotate_seconds] [-w worker_threads]");
+		System.out.println("     [-q tail|oldest (ARP queue drop policy)]");
+		System.out.println("     [-a (no proactive ARP refresh)]");
+		System.out.println("     [-S (ARP snooping)] [-g (gratuitous ARP at startup)]");
 		System.out.println(String.format("  defaults server=%s port=%d host=%s", 
 				DEFAULT_SERVER, DEFAULT_PORT, DEFAULT_HOST));
 	}
@@ -0,0 +1,331 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable binary trie indexing route table entries by destination prefix,
+ * used for longest prefix match lookups. Each prefix has one or more paths:
+ * entries for the prefix with equal hop counts but different gateways. The
+ * cost of a lookup is bounded by the length of the longest prefix in the trie
+ * (at most 32 bits), independent of the number of entries. Updates copy only
+ * the path to the modified prefix and return a new trie, so a trie can be
+ * read by any number of threads while the next version is being built.
+ */
+public class PrefixTrie
+{
+	/** A node in the trie; the depth of a node is the prefix length */
+	private static class Node
+	{
+		/** Children for the next bit of the prefix being 0 or 1 */
+		private final Node zero, one;
+
+		/** Paths for the prefix ending at this node; null if none */
+		private final RouteTableEntry[] paths;
+
+		private Node(Node zero, Node one, RouteTableEntry[] paths)
+		{
+			this.zero = zero;
+			this.one = one;
+			this.paths = paths;
+		}
+
+		private Node child(int bit)
+		{ return (0 == bit) ? this.zero : this.one; }
+	}
+
+	/** A trie containing no prefixes */
+	public static final PrefixTrie EMPTY = new PrefixTrie(null, 0);
+
+	/** Root of the trie; corresponds to the zero-length prefix */
+	private final Node root;
+
+	/** Number of prefixes stored in the trie */
+	private final int size;
+
+	/** First path for each prefix in the trie, built on first use */
+	private volatile List<RouteTableEntry> entries;
+
+	private PrefixTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @return number of prefixes stored in the trie
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Convert a subnet mask into a prefix length.
+	 * @param maskIp subnet mask
+	 * @return number of leading one bits in the mask
+	 */
+	public static int prefixLength(int maskIp)
+	{ return Integer.numberOfLeadingZeros(~maskIp); }
+
+	private static int bit(int ip, int depth)
+	{ return (ip >>> (31 - depth)) & 1; }
+
+	/**
+	 * Add a route with a single path, replacing any paths for the same prefix.
+	 * @param entry route to add
+	 * @return a trie containing the route
+	 */
+	public PrefixTrie insert(RouteTableEntry entry)
+	{ return this.insert(new RouteTableEntry[] { entry }); }
+
+	/**
+	 * Set the paths for a prefix, replacing any paths for the same prefix.
+	 * @param paths entries for the prefix, which must all have the same 
+	 *        destination and subnet mask; the array must not be modified
+	 *        afterwards
+	 * @return a trie containing the paths
+	 */
+	public PrefixTrie insert(RouteTableEntry[] paths)
+	{
+		int dstIp = paths[0].getDestinationAddress();
+		int maskIp = paths[0].getMaskAddress();
+		int size = this.size;
+		if (null == this.find(dstIp, maskIp))
+		{ size++; }
+		return new PrefixTrie(insert(this.root, dstIp, prefixLength(maskIp), 0,
+				paths), size);
+	}
+
+	private static Node insert(Node node, int prefix, int length, int depth,
+			RouteTableEntry[] paths)
+	{
+		Node zero = (null == node) ? null : node.zero;
+		Node one = (null == node) ? null : node.one;
+		if (depth == length)
+		{ return new Node(zero, one, paths); }
+
+		RouteTableEntry[] current = (null == node) ? null : node.paths;
+		if (0 == bit(prefix, depth))
+		{ zero = insert(zero, prefix, length, depth + 1, paths); }
+		else
+		{ one = insert(one, prefix, length, depth + 1, paths); }
+		return new Node(zero, one, current);
+	}
+
+	/**
+	 * Remove all paths for a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return a trie without the prefix; this trie if the prefix was not
+	 *         present
+	 */
+	public PrefixTrie remove(int dstIp, int maskIp)
+	{
+		if (null == this.find(dstIp, maskIp))
+		{ return this; }
+		return new PrefixTrie(remove(this.root, dstIp, prefixLength(maskIp), 0),
+				this.size - 1);
+	}
+
+	private static Node remove(Node node, int prefix, int length, int depth)
+	{
+		Node zero = node.zero;
+		Node one = node.one;
+		RouteTableEntry[] paths = node.paths;
+		if (depth == length)
+		{ paths = null; }
+		else if (0 == bit(prefix, depth))
+		{ zero = remove(zero, prefix, length, depth + 1); }
+		else
+		{ one = remove(one, prefix, length, depth + 1); }
+
+		// Prune nodes that no longer lead to any route
+		if (null == paths && null == zero && null == one)
+		{ return null; }
+		return new Node(zero, one, paths);
+	}
+
+	/**
+	 * Find the first path for an exact prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return the route for the prefix; null if the prefix is not present
+	 */
+	public RouteTableEntry find(int dstIp, int maskIp)
+	{
+		RouteTableEntry[] paths = this.findPaths(dstIp, maskIp);
+		return (null == paths) ? null : paths[0];
+	}
+
+	/**
+	 * Find the paths for an exact prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return the paths for the prefix, which must not be modified; null if
+	 *         the prefix is not present
+	 */
+	public RouteTableEntry[] findPaths(int dstIp, int maskIp)
+	{
+		int length = prefixLength(maskIp);
+		Node node = this.root;
+		for (int i = 0; i < length && node != null; i++)
+		{ node = node.child(bit(dstIp, i)); }
+		return (null == node) ? null : node.paths;
+	}
+
+	/**
+	 * Find the first path of the reachable route with the longest prefix 
+	 * matching an IP address.
+	 * @param ip IP address to match
+	 * @return the best matching route; null if no reachable route matches
+	 */
+	public RouteTableEntry lookup(int ip)
+	{
+		RouteTableEntry[] paths = this.lookupPaths(ip);
+		return (null == paths) ? null : paths[0];
+	}
+
+	/**
+	 * Find the paths of the reachable route with the longest prefix matching
+	 * an IP address. Paths for a prefix all have the same hop count, so they
+	 * are all reachable or all unreachable.
+	 * @param ip IP address to match
+	 * @return the paths of the best matching route, which must not be 
+	 *         modified; null if no reachable route matches
+	 */
+	public RouteTableEntry[] lookupPaths(int ip)
+	{
+		Node node = this.root;
+		RouteTableEntry[] best = null;
+		for (int i = 0; node != null; i++)
+		{
+			if (node.paths != null && node.paths[0].isReachable())
+			{ best = node.paths; }
+			if (32 == i)
+			{ break; }
+			node = node.child(bit(ip, i));
+		}
+		return best;
+	}
+
+	/**
+	 * @return unmodifiable list of the first path for each prefix in the 
+	 *         trie, ordered by prefix
+	 */
+	public List<RouteTableEntry> getEntries()
+	{
+		List<RouteTableEntry> result = this.entries;
+		if (null == result)
+		{
+			result = new ArrayList<RouteTableEntry>(this.size);
+			collect(this.root, result);
+			result = Collections.unmodifiableList(result);
+			this.entries = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Builds a trie from many routes at once. Routes are added to mutable 
+	 * nodes, which are converted into a trie once all routes are added, 
+	 * instead of copying the path to a prefix every time a route is inserted.
+	 */
+	public static class Builder
+	{
+		/** A node that is modified as routes are added */
+		private static class MutableNode
+		{
+			private MutableNode zero, one;
+			private RouteTableEntry[] paths;
+		}
+
+		/** Maximum number of paths for a prefix */
+		private final int maxPaths;
+
+		/** Root of the trie being built */
+		private final MutableNode root;
+
+		/** Number of prefixes added */
+		private int size;
+
+		/**
+		 * Create a builder with no routes.
+		 * @param maxPaths maximum number of paths for a prefix
+		 */
+		public Builder(int maxPaths)
+		{
+			this.maxPaths = maxPaths;
+			this.root = new MutableNode();
+			this.size = 0;
+		}
+
+		/**
+		 * Add a route; a route for a prefix that was already added becomes
+		 * another path for the prefix.
+		 * @param entry route to add
+		 * @return true if the route was added; false if the prefix already 
+		 *         has the maximum number of paths
+		 */
+		public boolean add(RouteTableEntry entry)
+		{
+			int dstIp = entry.getDestinationAddress();
+			int length = prefixLength(entry.getMaskAddress());
+			MutableNode node = this.root;
+			for (int i = 0; i < length; i++)
+			{
+				if (0 == bit(dstIp, i))
+				{
+					if (null == node.zero)
+					{ node.zero = new MutableNode(); }
+					node = node.zero;
+				}
+				else
+				{
+					if (null == node.one)
+					{ node.one = new MutableNode(); }
+					node = node.one;
+				}
+			}
+
+			if (null == node.paths)
+			{
+				node.paths = new RouteTableEntry[] { entry };
+				this.size++;
+				return true;
+			}
+			if (node.paths.length >= this.maxPaths)
+			{ return false; }
+			node.paths = Arrays.copyOf(node.paths, node.paths.length + 1);
+			node.paths[node.paths.length - 1] = entry;
+			return true;
+		}
+
+		/**
+		 * @return a trie containing the routes added so far
+		 */
+		public PrefixTrie build()
+		{ return new PrefixTrie(freeze(this.root), this.size); }
+
+		private static Node freeze(MutableNode node)
+		{
+			if (null == node)
+			{ return null; }
+			Node zero = freeze(node.zero);
+			Node one = freeze(node.one);
+			if (null == node.paths && null == zero && null == one)
+			{ return null; }
+			return new Node(zero, one, node.paths);
+		}
+	}
+
+	private static void collect(Node node, List<RouteTableEntry> result)
+	{
+		if (null == node)
+		{ return; }
+		if (node.paths != null)
+		{ result.add(node.paths[0]); }
+		collect(node.zero, result);
+		collect(node.one, result);
+	}
+}
@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.sr;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.RIPv2;
@@ -10,7 +11,7 @@ import net.floodlightcontroller.packet.UDP;
   * Implements RIP. 
   * @author Anubhavnidhi Abhashkumar and Aaron Gember-Jacobson
   */
-public class RIP implements Runnable
+public class RIP
 {
     private static final int RIP_MULTICAST_IP = 0xE0000009;
     private static final byte[] BROADCAST_MAC = {(byte)0xFF, (byte)0xFF, 
@@ -22,16 +23,61 @@ public class RIP implements Runnable
     /** Timeout routes that neighbors last advertised more than 30 seconds ago*/
     private static final int TIMEOUT = 30;
 
+    /** Remove routes 20 seconds after they time out or become unreachable;
+      * the timeout and garbage-collection intervals keep the 3:2 ratio of 
+      * the RFC 2453 defaults (180 and 120 seconds) */
+    private static final int GARBAGE_COLLECTION = 20;
+
+    /** Metric of an unreachable destination */
+    private static final int INFINITY = RouteTableEntry.INFINITY;
+
+    /** After a triggered update is sent, further triggered updates are held 
+      * down for a random time between 1 and 5 seconds (RFC 2453 3.10.1) */
+    private static final int MIN_TRIGGER_HOLDDOWN = 1000;
+    private static final int MAX_TRIGGER_HOLDDOWN = 5000;
+
+    /** Maximum number of routes in a RIP packet (RFC 2453 3.6) */
+    private static final int MAX_ENTRIES = 25;
+
+    /** Packets of a response that needs more than one packet are sent 10 
+      * milliseconds apart, so neighbors are not sent a burst of packets */
+    private static final int PACKET_INTERVAL = 10;
+
     /** Router whose route table is being managed */
 	private Router router;
 
-    /** Thread for periodic tasks */
-    private Thread tasksThread;
+    /** Event sending periodic updates; null until RIP is initialized */
+    private ScheduledFuture<?> updateTimer;
+
+    /** Events timing out routes learned from neighbors; maps a prefix (see 
+      * prefixKey) to the event checking the route for that prefix; guarded 
+      * by itself */
+    private Map<Long,ScheduledFuture<?>> expiryTimers;
+
+    /** Prefixes (see prefixKey) whose routes changed since an update was 
+      * last sent; guarded by itself */
+    private Set<Long> changedRoutes;
+
+    /** Event sending a triggered update; null if none is scheduled; guarded 
+      * by changedRoutes */
+    private ScheduledFuture<?> triggerTimer;
+
+    /** Time (in milliseconds) before which another triggered update may not 
+      * be sent; guarded by changedRoutes */
+    private long triggerHolddownEnd;
+
+    /** Source of random triggered update hold-down times */
+    private Random random;
 
 	public RIP(Router router)
 	{ 
         this.router = router; 
-        this.tasksThread = new Thread(this);
+        this.updateTimer = null;
+        this.expiryTimers = new HashMap<Long,ScheduledFuture<?>>();
+        this.changedRoutes = new HashSet<Long>();
+        this.triggerTimer = null;
+        this.triggerHolddownEnd = 0;
+        this.random = new Random();
     }
 	private final int RIP_REQUEST = 0;
 	private final int RIP_RESPONSE = 1;
@@ -53,7 +99,12 @@ public class RIP implements Runnable
         }
         System.out.println("Route Table:\n"+this.router.getRouteTable());
 
-		this.tasksThread.start();
+        this.updateTimer = this.router.getScheduler().scheduleAtFixedRate(
+                new Runnable()
+                {
+                    public void run()
+                    { sendUpdates(); }
+                }, UPDATE_INTERVAL*1000, UPDATE_INTERVAL*1000);
 
         /*********************************************************************/
         /* TODO: Add other initialization code as necessary                  */
@@ -61,6 +112,13 @@ public class RIP implements Runnable
         /*********************************************************************/
 	}
 
+    /**
+      * @return true if RIP is managing the route table, i.e., the route
+      *         table was empty when RIP was initialized; otherwise false
+      */
+    public boolean isRunning()
+    { return this.updateTimer != null; }
+
     /**
       * Handle a RIP packet received by the router.
       * @param etherPacket the Ethernet packet that was received
@@ -105,7 +163,9 @@ public class RIP implements Runnable
 						{ hoptime = 16; }
 						int netAddr = ipAddr & mask;
 						// i have it already 
-						this.router.getRouteTable().updateEntry(ipAddr, mask, nextHop, inIface.getName() ,hoptime);
+						if (this.router.getRouteTable().updateEntry(ipAddr, mask, nextHop, inIface.getName() ,hoptime))
+						{ this.routeChanged(ipAddr, mask); }
+						this.scheduleExpiry(ipAddr, mask);
 						
 					}
 					break;
@@ -120,13 +180,93 @@ public class RIP implements Runnable
         /*********************************************************************/
 	}
 	private void sendRip(int type, Ethernet etherPacket, Iface iface) 
+	{ this.sendRip(type, etherPacket, iface, this.router.getRouteTable().getEntries()); }
+
+    /**
+      * Send RIP packets advertising some routes out an interface. Routes 
+      * learned from a neighbor through the interface are advertised as 
+      * unreachable (split horizon with poisoned reverse), so the neighbor 
+      * never routes back through this router when its own route fails. Each
+      * packet carries at most MAX_ENTRIES routes; when more packets are 
+      * needed, they are sent PACKET_INTERVAL milliseconds apart.
+      * @param type RIP_REQUEST, RIP_RESPONSE or RIP_UNSOL
+      * @param etherPacket the request being answered, for RIP_RESPONSE
+      * @param iface the interface out which to send the packets
+      * @param routes the routes to advertise
+      */
+	private void sendRip(int type, Ethernet etherPacket, final Iface iface, 
+            Collection<RouteTableEntry> routes) 
+	{
+		List<RIPv2Entry> entries = new ArrayList<RIPv2Entry>();
+		for (RouteTableEntry myEntry : routes)
+		{
+				int metric = Math.min(myEntry.getHopTime(), INFINITY);
+				if (this.learnedThrough(myEntry, iface))
+				{ metric = INFINITY; }
+				RIPv2Entry entry = new RIPv2Entry(myEntry.getDestinationAddress(), myEntry.getMaskAddress(), metric);
+				entries.add(entry);
+		}
+
+		// Send at least one packet, even if there are no routes
+		int packetCount = Math.max(1, 
+				(entries.size() + MAX_ENTRIES - 1) / MAX_ENTRIES);
+		for (int i = 0; i < packetCount; i++)
+		{
+			final Ethernet ether = this.buildRip(type, etherPacket, iface,
+					entries.subList(i * MAX_ENTRIES, 
+							Math.min(entries.size(), (i + 1) * MAX_ENTRIES)));
+			if (0 == i)
+			{
+				router.sendPacket(ether, iface);
+				continue;
+			}
+			this.router.getScheduler().schedule(new Runnable()
+				{
+					public void run()
+					{ router.sendPacket(ether, iface); }
+				}, i * PACKET_INTERVAL);
+		}
+	}
+
+    /**
+      * Determine whether any path of a route was learned from a neighbor
+      * through an interface.
+      * @param route the route, or the first of its paths
+      * @param iface the interface
+      * @return true if a path goes through a gateway out the interface
+      */
+    private boolean learnedThrough(RouteTableEntry route, Iface iface)
+    {
+        RouteTableEntry[] paths = this.router.getRouteTable().findPaths(
+                route.getDestinationAddress(), route.getMaskAddress());
+        if (null == paths)
+        { paths = new RouteTableEntry[] { route }; }
+        for (RouteTableEntry path : paths)
+        {
+            if (path.getGatewayAddress() != 0
+                    && iface.getName().equals(path.getInterface()))
+            { return true; }
+        }
+        return false;
+    }
+
+    /**
+      * Build a RIP packet to send out an interface.
+      * @param type RIP_REQUEST, RIP_RESPONSE or RIP_UNSOL
+      * @param etherPacket the request being answered, for RIP_RESPONSE
+      * @param iface the interface out which the packet will be sent
+      * @param entries the entries the packet carries
+      * @return the Ethernet frame containing the packet
+      */
+	private Ethernet buildRip(int type, Ethernet etherPacket, Iface iface,
+            List<RIPv2Entry> entries)
 	{
 		Ethernet ether = new Ethernet();
 		IPv4 ip = new IPv4();
 		UDP udp = new UDP();
 		RIPv2 rip = new RIPv2();
 
-		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setSourceMACAddress(iface.getMacAddress().toLong());
 		ether.setEtherType(Ethernet.TYPE_IPv4);
 
 		ip.setTtl((byte)64);
@@ -154,68 +294,187 @@ public class RIP implements Runnable
 				//answer other's ask
 				IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 				rip.setCommand(RIPv2.COMMAND_RESPONSE);
-				ether.setDestinationMACAddress(ether.getSourceMACAddress());
+				ether.setDestinationMACAddress(
+						etherPacket.getSourceMACAddressAsLong());
 				ip.setDestinationAddress(ipPacket.getSourceAddress());
 				break;
 			default:
 				break;
 		}
 
-		List<RIPv2Entry> entries = new ArrayList<RIPv2Entry>();
-		for (RouteTableEntry myEntry : this.router.getRouteTable().getEntries())
-		{
-				RIPv2Entry entry = new RIPv2Entry(myEntry.getDestinationAddress(), myEntry.getMaskAddress(), myEntry.getHopTime());
-				entries.add(entry);
-		}
 		rip.setEntries(entries);		
+		// Checksums are computed when the frame is serialized for sending
 		udp.setPayload(rip);
 		udp.setChecksum((short)(0));
-		byte[] serialized = udp.serialize();
-		udp.deserialize(serialized, 0, serialized.length);
-		
 		ip.setPayload(udp);
 		ip.setChecksum((short)(0));
-		serialized = ip.serialize();
-		ip.deserialize(serialized, 0, serialized.length);
-		
 		ether.setPayload(ip);
-		
-		//System.out.println(":::::send RIP:::::");
-		router.sendPacket(ether, iface);
+		return ether;
 	}
 
-    
+
     /**
-      * Perform periodic RIP tasks.
+      * Send an unsolicited response out every interface.
       */
-	@Override
-	public void run() 
+    private void sendUpdates()
     {
-    
-    while (true)
-		{
-			// Run every second
-			try 
-			{ Thread.sleep(UPDATE_INTERVAL*1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			
-			for (RouteTableEntry entry : this.router.getRouteTable().getEntries())
-			{
-				if (entry.getTimeAdded() != -1  && (System.currentTimeMillis() - entry.getTimeAdded()) 
-						> TIMEOUT*1000)
-				{ 
-					this.router.getRouteTable().removeEntry(entry.getDestinationAddress(), entry.getMaskAddress());
-				}
-			}
-			for (Iface iface : this.router.getInterfaces().values()){ 
-				sendRip(RIP_UNSOL, null, iface); 
-			}
-		}
-        /*********************************************************************/
-        /* TODO: Send period updates and time out route table entries        */
+        // The full table includes any changes a triggered update would send
+        synchronized(this.changedRoutes)
+        {
+            this.changedRoutes.clear();
+            if (this.triggerTimer != null)
+            {
+                this.triggerTimer.cancel(false);
+                this.triggerTimer = null;
+            }
+        }
 
-        /*********************************************************************/
-	}
+        for (Iface iface : this.router.getInterfaces().values())
+        { sendRip(RIP_UNSOL, null, iface); }
+    }
+
+    /**
+      * Record that the route for a prefix changed, and make sure a triggered
+      * update advertising it is sent, immediately or once the hold-down 
+      * following the last triggered update ends.
+      * @param dstIp destination IP of the prefix
+      * @param maskIp subnet mask of the prefix
+      */
+    private void routeChanged(int dstIp, int maskIp)
+    {
+        synchronized(this.changedRoutes)
+        {
+            this.changedRoutes.add(prefixKey(dstIp, maskIp));
+
+            // Changes are only advertised once RIP is running, and changes 
+            // made before a scheduled triggered update is sent are batched
+            if (null == this.updateTimer || this.triggerTimer != null)
+            { return; }
+
+            long delay = Math.max(0, 
+                    this.triggerHolddownEnd - System.currentTimeMillis());
+            this.triggerTimer = this.router.getScheduler().schedule(
+                    new Runnable()
+                    {
+                        public void run()
+                        { sendTriggeredUpdate(); }
+                    }, delay);
+        }
+    }
+
+    /**
+      * Send an unsolicited response containing only the routes that changed 
+      * since an update was last sent out every interface, and start the 
+      * hold-down for the next triggered update. Routes that were removed are
+      * advertised as unreachable.
+      */
+    private void sendTriggeredUpdate()
+    {
+        List<Long> changed;
+        synchronized(this.changedRoutes)
+        {
+            this.triggerTimer = null;
+            if (this.changedRoutes.isEmpty())
+            { return; }
+            changed = new ArrayList<Long>(this.changedRoutes);
+            this.changedRoutes.clear();
+            this.triggerHolddownEnd = System.currentTimeMillis() 
+                    + MIN_TRIGGER_HOLDDOWN + this.random.nextInt(
+                            MAX_TRIGGER_HOLDDOWN - MIN_TRIGGER_HOLDDOWN + 1);
+        }
+
+        List<RouteTableEntry> routes = new ArrayList<RouteTableEntry>();
+        for (long key : changed)
+        {
+            int dstIp = (int)(key >>> 32);
+            int maskIp = (int)key;
+            RouteTableEntry route = 
+                    this.router.getRouteTable().findEntry(dstIp, maskIp);
+            if (null == route)
+            { route = new RouteTableEntry(dstIp, 0, maskIp, null, INFINITY); }
+            routes.add(route);
+        }
+
+        for (Iface iface : this.router.getInterfaces().values())
+        { sendRip(RIP_UNSOL, null, iface, routes); }
+    }
+
+    private static long prefixKey(int dstIp, int maskIp)
+    { return ((long)dstIp << 32) | (maskIp & 0xFFFFFFFFL); }
+
+    /**
+      * Make sure the route for a prefix will be timed out TIMEOUT seconds 
+      * after it was last advertised, and removed GARBAGE_COLLECTION seconds
+      * after it timed out or became unreachable. Only one event is scheduled
+      * per prefix; advertisements received before the event fires just push
+      * back the time at which it next checks the route.
+      * @param dstIp destination IP of the prefix
+      * @param maskIp subnet mask of the prefix
+      */
+    private void scheduleExpiry(int dstIp, int maskIp)
+    {
+        long key = prefixKey(dstIp, maskIp);
+        synchronized(this.expiryTimers)
+        {
+            if (!this.expiryTimers.containsKey(key))
+            { this.checkExpiry(dstIp, maskIp, key); }
+        }
+    }
+
+    /**
+      * Mark the route for a prefix unreachable if its last path has timed 
+      * out, which triggers an update advertising it with metric 16, and 
+      * remove an unreachable route once it is due to be garbage collected;
+      * otherwise check the route again when its next path is due to time out
+      * or it is due to be removed.
+      * Must be called with expiryTimers locked.
+      */
+    private void checkExpiry(final int dstIp, final int maskIp, final long key)
+    {
+        RouteTable routeTable = this.router.getRouteTable();
+        RouteTableEntry[] paths = routeTable.findPaths(dstIp, maskIp);
+        if (null == paths || -1 == paths[0].getTimeAdded())
+        {
+            // The route is gone or is not learned from a neighbor
+            this.expiryTimers.remove(key);
+            return;
+        }
+
+        // Check the path that was advertised least recently
+        RouteTableEntry entry = paths[0];
+        for (RouteTableEntry path : paths)
+        {
+            if (path.getTimeAdded() < entry.getTimeAdded())
+            { entry = path; }
+        }
+
+        // An unreachable route was created when the route timed out or was 
+        // withdrawn, and is never refreshed
+        long interval = entry.isReachable() ? TIMEOUT : GARBAGE_COLLECTION;
+        long remaining = entry.getTimeAdded() + interval*1000 
+                - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+            // A timed-out path is dropped if the route has other paths, and
+            // otherwise makes the route unreachable
+            if (!entry.isReachable())
+            { routeTable.removeEntry(entry); }
+            else if (routeTable.invalidateEntry(entry))
+            { this.routeChanged(dstIp, maskIp); }
+
+            // Check the remaining or unreachable paths, or the paths that 
+            // replaced the one found, immediately
+            remaining = 0;
+        }
+
+        this.expiryTimers.put(key, this.router.getScheduler().schedule(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        synchronized(expiryTimers)
+                        { checkExpiry(dstIp, maskIp, key); }
+                    }
+                }, remaining));
+    }
 }
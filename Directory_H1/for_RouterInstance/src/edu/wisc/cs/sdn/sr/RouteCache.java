@@ -0,0 +1,144 @@
+package edu.wisc.cs.sdn.sr;
+
+/**
+ * A bounded cache of forwarding decisions for destination IP addresses.
+ * Each cached decision is stamped with the versions of the route table and
+ * ARP cache it was computed from, and is ignored once either has changed, so
+ * the whole cache is invalidated without having to clear it. A destination
+ * with several equal-cost paths has a decision for each group of flows, 
+ * since flows in different groups may take different paths.
+ */
+public class RouteCache
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_SIZE = 1024;
+
+	/** Flow group of a decision that applies to every flow to a destination */
+	public static final int ALL_FLOWS = -1;
+
+	/** A forwarding decision for a destination IP address */
+	public static class Entry
+	{
+		private final int dstIp;
+		private final int flowGroup;
+		private final long routeVersion;
+		private final long arpVersion;
+		private final RouteTableEntry route;
+		private final Iface iface;
+		private final ArpEntry arpEntry;
+
+		private Entry(int dstIp, int flowGroup, long routeVersion, 
+				long arpVersion, RouteTableEntry route, Iface iface, 
+				ArpEntry arpEntry)
+		{
+			this.dstIp = dstIp;
+			this.flowGroup = flowGroup;
+			this.routeVersion = routeVersion;
+			this.arpVersion = arpVersion;
+			this.route = route;
+			this.iface = iface;
+			this.arpEntry = arpEntry;
+		}
+
+		/**
+		 * @return route table entry matching the destination; the path taken
+		 *         if there are several
+		 */
+		public RouteTableEntry getRoute()
+		{ return this.route; }
+
+		/**
+		 * @return interface out which packets should be sent
+		 */
+		public Iface getIface()
+		{ return this.iface; }
+
+		/**
+		 * @return ARP entry for the next hop
+		 */
+		public ArpEntry getArpEntry()
+		{ return this.arpEntry; }
+	}
+
+	/** Cached decisions, indexed by a hash of the destination IP and flow 
+	 * group; entries are immutable, so slots can be read and replaced without
+	 * locking */
+	private final Entry[] slots;
+
+	/** Number of bits in a slot index */
+	private final int indexBits;
+
+	/**
+	 * Create an empty cache with the default number of slots.
+	 */
+	public RouteCache()
+	{ this(DEFAULT_SIZE); }
+
+	/**
+	 * Create an empty cache.
+	 * @param size number of slots in the cache; rounded up to a power of two
+	 */
+	public RouteCache(int size)
+	{
+		this.indexBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(size - 1));
+		this.slots = new Entry[1 << this.indexBits];
+	}
+
+	private int index(int dstIp, int flowGroup)
+	{
+		return (dstIp * 0x9E3779B9 + flowGroup * 0x85EBCA6B) 
+				>>> (32 - this.indexBits);
+	}
+
+	/**
+	 * Find the cached forwarding decision for a flow to a destination IP 
+	 * address.
+	 * @param dstIp destination IP address
+	 * @param flowGroup group of the flow
+	 * @param routeVersion current version of the route table
+	 * @param arpVersion current version of the ARP cache
+	 * @return the cached decision; null if none exists or it is out of date
+	 */
+	public Entry lookup(int dstIp, int flowGroup, long routeVersion, 
+			long arpVersion)
+	{
+		// Most destinations have a single decision for all flows
+		Entry entry = this.slots[this.index(dstIp, ALL_FLOWS)];
+		if (entry != null && entry.dstIp == dstIp 
+				&& ALL_FLOWS == entry.flowGroup
+				&& entry.routeVersion == routeVersion
+				&& entry.arpVersion == arpVersion)
+		{ return entry; }
+		
+		entry = this.slots[this.index(dstIp, flowGroup)];
+		if (entry != null && entry.dstIp == dstIp
+				&& entry.flowGroup == flowGroup
+				&& entry.routeVersion == routeVersion
+				&& entry.arpVersion == arpVersion)
+		{ return entry; }
+		return null;
+	}
+
+	/**
+	 * Cache the forwarding decision for a destination IP address, replacing
+	 * any decision that occupies the same slot.
+	 * @param dstIp destination IP address
+	 * @param flowGroup group of flows the decision applies to; ALL_FLOWS if 
+	 *        the destination has a single path
+	 * @param routeVersion version of the route table the decision is based on
+	 * @param arpVersion version of the ARP cache the decision is based on
+	 * @param route route table entry matching the destination
+	 * @param iface interface out which packets should be sent
+	 * @param arpEntry ARP entry for the next hop
+	 * @return the cached decision
+	 */
+	public Entry insert(int dstIp, int flowGroup, long routeVersion, 
+			long arpVersion, RouteTableEntry route, Iface iface, 
+			ArpEntry arpEntry)
+	{
+		Entry entry = new Entry(dstIp, flowGroup, routeVersion, arpVersion, 
+				route, iface, arpEntry);
+		this.slots[this.index(dstIp, flowGroup)] = entry;
+		return entry;
+	}
+}
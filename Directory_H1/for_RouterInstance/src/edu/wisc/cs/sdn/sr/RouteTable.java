@@ -1,142 +1,364 @@
 package edu.wisc.cs.sdn.sr;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
- * Route table for a router.
+ * Route table for a router. Lookups read an immutable snapshot of the table
+ * that is published through a single volatile reference; updates build the
+ * next snapshot off to the side and then swap it in, so the forwarding path 
+ * never blocks on, or races with, changes to the table.
+ * <p>
+ * A prefix may have several equal-cost paths, with the same hop count but
+ * different gateways; packets are spread across them by the router.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteTableEntry> entries; 
+	/** Maximum number of equal-cost paths kept for a prefix */
+	public static final int MAX_PATHS = 4;
+	
+	/** An immutable version of the route table */
+	private static class Snapshot
+	{
+		/** Entries in the route table, indexed by prefix */
+		private final PrefixTrie trie;
+		
+		/** Number of updates made to the route table */
+		private final long version;
+		
+		private Snapshot(PrefixTrie trie, long version)
+		{
+			this.trie = trie;
+			this.version = version;
+		}
+	}
+	
+	/** Current version of the route table */
+	private volatile Snapshot snapshot;
+	
+	/** Serializes updates to the route table */
+	private final Object updateLock;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteTableEntry>(); }
+	{
+		this.snapshot = new Snapshot(PrefixTrie.EMPTY, 0);
+		this.updateLock = new Object();
+	}
 	
 	/**
-	 * @return entries in the route table
+	 * @return entries in the route table; the list is an unmodifiable 
+	 *         snapshot that is not affected by later updates
 	 */
 	public List<RouteTableEntry> getEntries()
-	{ return this.entries; }
+	{ return this.snapshot.trie.getEntries(); }
+	
+	/**
+	 * @return number of prefixes in the route table
+	 */
+	public int size()
+	{ return this.snapshot.trie.size(); }
+	
+	/**
+	 * @return number of updates made to the route table; changes whenever 
+	 *         the result of a lookup may have changed
+	 */
+	public long getVersion()
+	{ return this.snapshot.version; }
+	
+	/**
+	 * Replace the current version of the route table. Must be called with the
+	 * update lock held.
+	 * @param trie entries for the new version of the route table
+	 */
+	private void publish(PrefixTrie trie)
+	{ this.snapshot = new Snapshot(trie, this.snapshot.version + 1); }
 	
 	/**
-	 * Populate the route table from a file.
+	 * Populate the route table from a file. The file is either a text file,
+	 * with a line for each entry containing the destination, gateway, subnet
+	 * mask and interface name separated by whitespace, or a binary snapshot
+	 * written by save. Lines with the same destination and subnet mask are
+	 * equal-cost paths for the prefix.
 	 * @param filename name of the file containing the static route table
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
 	public boolean load(String filename)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
+		// Build the new table off to the side
+		PrefixTrie trie = read(filename);
+		if (null == trie)
+		{ return false; }
+		
+		// If we successfully read entries from the file, then replace the
+		// current route table
+		if (trie.size() > 0)
 		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
+			System.out.println("Loading routing table from server, replace local routing table");
+			synchronized(this.updateLock)
+			{ this.publish(trie); }
 		}
-		catch (FileNotFoundException e) 
+		return true;
+	}
+	
+	/**
+	 * Replace the route table with the entries in a file, while the router 
+	 * is forwarding packets. The file is read and checked before the table
+	 * is touched, and the new entries are then swapped in at once, so 
+	 * lookups see either the old table or the new one, never a mix or an 
+	 * empty table. The table is left unchanged if the file cannot be read, 
+	 * has no entries, or refers to an interface the router does not have.
+	 * The file is copied rather than mapped, since it may be rewritten while
+	 * it is read. All entries are replaced, including any added by RIP, so callers
+	 * must only reload a static route table (see Router.reloadRouteTable).
+	 * @param filename name of the file containing the route table
+	 * @param interfaces router interfaces, indexed by name
+	 * @return differences between the old and new table; null if the table
+	 *         was not replaced
+	 */
+	public RouteTableDiff reload(String filename, Map<String,Iface> interfaces)
+	{
+		ByteBuffer data;
+		try
+		{ data = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename))); }
+		catch (IOException e)
 		{
 			System.err.println(e.toString());
-			return false;
+			return null;
 		}
 		
-		boolean clearRoutingTable = true;
-		while (true)
+		PrefixTrie trie = decode(data);
+		if (null == trie)
+		{ return null; }
+		if (0 == trie.size())
 		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
+			System.err.println("Not reloading empty routing table " + filename);
+			return null;
+		}
+		if (!verify(trie, interfaces))
+		{
+			System.err.println("Not reloading routing table " + filename
+					+ ", not consistent with hardware");
+			return null;
+		}
+		
+		PrefixTrie old;
+		synchronized(this.updateLock)
+		{
+			old = this.snapshot.trie;
+			this.publish(trie);
+		}
+		return RouteTableDiff.compute(old, trie);
+	}
+	
+	/**
+	 * Read the entries in a route table file.
+	 * @param filename name of the file
+	 * @return the entries; null if the file cannot be read or is invalid
+	 */
+	private static PrefixTrie read(String filename)
+	{
+		// Map the file, instead of copying it through a reader
+		ByteBuffer data;
+		FileChannel channel = null;
+		try 
+		{
+			channel = FileChannel.open(Paths.get(filename), 
+					StandardOpenOption.READ);
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+					channel.size());
+		}
+		catch (IOException e) 
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		finally
+		{
+			if (channel != null)
+			{ try { channel.close(); } catch (IOException f) {}; }
+		}
+		return decode(data);
+	}
+	
+	/**
+	 * Decode the contents of a route table file.
+	 * @param data contents of the file, either text or a binary snapshot
+	 * @return the entries; null if the contents are invalid
+	 */
+	private static PrefixTrie decode(ByteBuffer data)
+	{
+		if (FibFile.isSnapshot(data))
+		{ return FibFile.read(data, MAX_PATHS); }
+		return parse(data);
+	}
+	
+	/**
+	 * Parse the entries in a text route table file.
+	 * @param data contents of the file
+	 * @return the entries; null if the file contains an invalid entry
+	 */
+	private static PrefixTrie parse(ByteBuffer data)
+	{
+		PrefixTrie.Builder builder = new PrefixTrie.Builder(MAX_PATHS);
+		Map<String,String> ifaceNames = new HashMap<String,String>();
+		int[] addresses = new int[3];
+		int lineNumber = 0;
+		int pos = data.position();
+		int limit = data.limit();
+		while (pos < limit)
+		{
+			// Find the end of the line
+			lineNumber++;
+			int end = pos;
+			while (end < limit && data.get(end) != '\n')
+			{ end++; }
+			int next = end + 1;
 			
-			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s\\s+%s\\s+%s", 
-                        ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			// Parse the addresses, skipping blank lines
+			pos = skipSpace(data, pos, end);
+			if (pos == end)
 			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				pos = next;
+				continue;
 			}
-
-			int dstIp = Util.dottedDecimalToInt(matcher.group(1));
-			if (0 == dstIp)
+			for (int i = 0; i < addresses.length && pos >= 0; i++)
 			{
-				System.err.println("Error loading routing table, cannot convert " + matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				long address = parseAddress(data, pos, end);
+				if (address < 0)
+				{ pos = -1; }
+				else
+				{
+					addresses[i] = (int)address;
+					pos = skipSpace(data, (int)(address >>> 32), end);
+				}
 			}
 			
-			int gwIp = Util.dottedDecimalToInt(matcher.group(2));
-			
-			int maskIp = Util.dottedDecimalToInt(matcher.group(3));
-			if (0 == maskIp)
+			// Parse the interface name, which must end the line
+			int nameStart = pos;
+			while (pos >= 0 && pos < end && isNameChar(data.get(pos)))
+			{ pos++; }
+			if (pos < 0 || pos == nameStart || skipSpace(data, pos, end) != end)
 			{
-				System.err.println("Error loading routing table, cannot convert " + matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				System.err.println("Invalid entry in routing table file on line "
+						+ lineNumber);
+				return null;
 			}
+			byte[] name = new byte[pos - nameStart];
+			for (int i = 0; i < name.length; i++)
+			{ name[i] = data.get(nameStart + i); }
+			String iface = new String(name, StandardCharsets.US_ASCII);
+			String interned = ifaceNames.get(iface);
+			if (null == interned)
+			{ ifaceNames.put(iface, iface); }
+			else
+			{ iface = interned; }
 			
-			String iface = matcher.group(4).trim();
-			
-			
-			// If we successfully read the first entry from the file, then
-			// flush the current route table
-			if (clearRoutingTable)
+			// Add an entry to the new route table; further entries for the
+			// same prefix are added as equal-cost paths
+			RouteTableEntry entry = new RouteTableEntry(addresses[0], 
+					addresses[1], addresses[2], iface, 0);
+			if (!builder.add(entry))
 			{
-				System.out.println("Loading routing table from server, clear local routing table");
-				entries.clear();
-				clearRoutingTable = false;
+				System.err.println("Ignoring route table entry on line " 
+						+ lineNumber + ", too many paths for " 
+						+ Util.intToDottedDecimal(addresses[0]));
 			}
-			
-			// Add an entry to the route table
-			this.addEntry(dstIp, gwIp, maskIp, iface,0);
+			pos = next;
 		}
+		return builder.build();
+	}
 	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
-		return true;
+	private static boolean isSpace(byte b)
+	{ return ' ' == b || '\t' == b || '\r' == b; }
+	
+	private static boolean isNameChar(byte b)
+	{
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') 
+				|| (b >= '0' && b <= '9');
+	}
+	
+	private static int skipSpace(ByteBuffer data, int pos, int end)
+	{
+		while (pos < end && isSpace(data.get(pos)))
+		{ pos++; }
+		return pos;
+	}
+	
+	/**
+	 * Parse an IP address in dotted decimal format.
+	 * @param data buffer containing the address
+	 * @param pos index of the first character of the address
+	 * @param end index after the last character that may be part of the 
+	 *        address
+	 * @return the address in the low 32 bits, and the index after the 
+	 *         address in the high 32 bits; -1 if there is no valid address
+	 */
+	private static long parseAddress(ByteBuffer data, int pos, int end)
+	{
+		int address = 0;
+		for (int octet = 0; octet < 4; octet++)
+		{
+			if (octet > 0)
+			{
+				if (pos >= end || data.get(pos) != '.')
+				{ return -1; }
+				pos++;
+			}
+			int value = 0;
+			int digits = 0;
+			while (pos < end && data.get(pos) >= '0' && data.get(pos) <= '9' 
+					&& digits < 3)
+			{
+				value = value * 10 + (data.get(pos) - '0');
+				digits++;
+				pos++;
+			}
+			if (0 == digits || value > 255)
+			{ return -1; }
+			address = (address << 8) | value;
+		}
+		if (pos < end && !isSpace(data.get(pos)))
+		{ return -1; }
+		return ((long)pos << 32) | (address & 0xFFFFFFFFL);
 	}
 	
 	/**
-	 * Add an entry to the route table.
+	 * Write a binary snapshot of the route table, which load can read much 
+	 * faster than a text file.
+	 * @param filename name of the file to write
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean save(String filename)
+	{ return FibFile.write(this.snapshot.trie, filename); }
+	
+	/**
+	 * Add an entry to the route table, replacing any entry for the same
+	 * destination and subnet mask.
 	 * @param dstIp destination IP
 	 * @param gwIp gateway IP
 	 * @param maskIp subnet mask
 	 * @param iface router interface out which to send packets to reach the 
 	 *        destination or gateway
+	 * @param hopTime number of hops to the destination
 	 */
 	public void addEntry(int dstIp, int gwIp, int maskIp, String iface,int hopTime)
 	{
 		RouteTableEntry entry = new RouteTableEntry(dstIp, gwIp, maskIp, iface,hopTime);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
-        }
+        synchronized(this.updateLock)
+        { this.publish(this.snapshot.trie.insert(entry)); }
 	}
 	
 	/**
@@ -147,71 +369,189 @@ public class RouteTable
 	 */
 	public boolean removeEntry(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
+        synchronized(this.updateLock)
         {
-            RouteTableEntry entry = this.findEntry(dstIp, maskIp);
-            if (null == entry)
+            PrefixTrie trie = this.snapshot.trie;
+            PrefixTrie updated = trie.remove(dstIp, maskIp);
+            if (updated == trie)
             { return false; }
-            this.entries.remove(entry);
+            this.publish(updated);
         }
         return true;
     }
 	
 	/**
-	 * Update an entry in the route table.
+	 * Remove an entry from the route table, unless it has since been replaced.
+	 * Other paths for the same prefix are kept.
+	 * @param entry the entry to remove
+	 * @return true if the entry was removed, otherwise false
+	 */
+	public boolean removeEntry(RouteTableEntry entry)
+	{
+        synchronized(this.updateLock)
+        {
+            PrefixTrie trie = this.snapshot.trie;
+            RouteTableEntry[] paths = trie.findPaths(
+                    entry.getDestinationAddress(), entry.getMaskAddress());
+            int index = indexOf(paths, entry);
+            if (index < 0)
+            { return false; }
+            this.publish(withoutPath(trie, paths, index));
+        }
+        return true;
+	}
+	
+	/**
+	 * Mark the destination of an entry unreachable, unless the entry has 
+	 * since been replaced. If the entry is one of several paths for its 
+	 * prefix, the entry is just removed; otherwise it is replaced by an 
+	 * unreachable entry through the same gateway, which lookups ignore.
+	 * @param entry the entry to invalidate
+	 * @return true if the destination became unreachable, otherwise false
+	 */
+	public boolean invalidateEntry(RouteTableEntry entry)
+	{
+        synchronized(this.updateLock)
+        {
+            PrefixTrie trie = this.snapshot.trie;
+            RouteTableEntry[] paths = trie.findPaths(
+                    entry.getDestinationAddress(), entry.getMaskAddress());
+            int index = indexOf(paths, entry);
+            if (index < 0 || !entry.isReachable())
+            { return false; }
+            if (paths.length > 1)
+            {
+                this.publish(withoutPath(trie, paths, index));
+                return false;
+            }
+            this.publish(trie.insert(new RouteTableEntry(
+                    entry.getDestinationAddress(), entry.getGatewayAddress(),
+                    entry.getMaskAddress(), entry.getInterface(),
+                    RouteTableEntry.INFINITY)));
+        }
+        return true;
+	}
+	
+	private static int indexOf(RouteTableEntry[] paths, RouteTableEntry entry)
+	{
+		for (int i = 0; paths != null && i < paths.length; i++)
+		{
+			if (paths[i] == entry)
+			{ return i; }
+		}
+		return -1;
+	}
+	
+	private static RouteTableEntry[] appendPath(RouteTableEntry[] paths,
+			RouteTableEntry entry)
+	{
+		RouteTableEntry[] updated = Arrays.copyOf(paths, paths.length + 1);
+		updated[paths.length] = entry;
+		return updated;
+	}
+	
+	/**
+	 * Remove one of the paths for a prefix, or the prefix if it is the only 
+	 * path.
+	 * @return the updated trie
+	 */
+	private static PrefixTrie withoutPath(PrefixTrie trie, 
+			RouteTableEntry[] paths, int index)
+	{
+		if (1 == paths.length)
+		{
+			return trie.remove(paths[0].getDestinationAddress(), 
+					paths[0].getMaskAddress());
+		}
+		RouteTableEntry[] remaining = new RouteTableEntry[paths.length - 1];
+		System.arraycopy(paths, 0, remaining, 0, index);
+		System.arraycopy(paths, index + 1, remaining, index, 
+				remaining.length - index);
+		return trie.insert(remaining);
+	}
+	
+	/**
+	 * Find the reachable entry with the longest prefix matching an IP address.
+	 * @param dstIp IP address to match
+	 * @return the best matching entry, or the first of its paths; null if no
+	 *         reachable entry matches
+	 */
+	public RouteTableEntry lookup(int dstIp)
+	{ return this.snapshot.trie.lookup(dstIp); }
+	
+	/**
+	 * Find the paths of the reachable entry with the longest prefix matching
+	 * an IP address.
+	 * @param dstIp IP address to match
+	 * @return the equal-cost paths of the best matching entry, which must not
+	 *         be modified; null if no reachable entry matches
+	 */
+	public RouteTableEntry[] lookupPaths(int dstIp)
+	{ return this.snapshot.trie.lookupPaths(dstIp); }
+	
+	/**
+	 * Update an entry in the route table with a route advertised by a 
+	 * neighbor. The route replaces the current paths if it has fewer hops, 
+	 * and is added as another path if it has the same number of hops through
+	 * a different gateway, up to MAX_PATHS paths. If the route goes through
+	 * the gateway of a current path with a different number of hops, the 
+	 * gateway's metric for the destination has changed: the path is dropped
+	 * if there are other paths, and otherwise takes the new number of hops.
+	 * If the route is the same as a current path, the path is only 
+	 * refreshed. An unreachable route is never added, and never refreshes an
+	 * entry, so the entry is garbage collected.
 	 * @param dstIP destination IP of the entry to update
      * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
 	 * @param ifaceName new router interface name for matching entry
-     * @return true if a matching entry was found and updated, otherwise false
+	 * @param hopTime new number of hops to the destination
+     * @return true if the route table changed, otherwise false
 	 */
-	private RouteTableEntry getBest(int dstAddr){
-		List<RouteTableEntry> fuck = this.getEntries();
-		RouteTableEntry bestMatch =null;
-		long t = 0;
-		for (RouteTableEntry x : fuck){
-			int ccc1 = ( x.getMaskAddress() & dstAddr );
-			int ccc2 = ( x.getDestinationAddress() & x.getMaskAddress() );
-			if (ccc1 == ccc2){
-				if (x.getMaskAddress()<t){
-					System.out.println("Find best match!");		
-					t = x.getMaskAddress();
-					bestMatch = x;
-				}
-			}
-		}
-		return bestMatch;
-	}
 	public boolean updateEntry(int dstIp, int maskIp, int gwIp, 
             String ifaceName,int hopTime)
 	{
-        synchronized(this.entries)
+        synchronized(this.updateLock)
         {
-            RouteTableEntry entry = this.findEntry(dstIp, maskIp);
-            if (null == entry)
+            PrefixTrie trie = this.snapshot.trie;
+            RouteTableEntry[] paths = trie.findPaths(dstIp, maskIp);
+            RouteTableEntry entry = 
+            		new RouteTableEntry(dstIp, gwIp, maskIp, ifaceName,hopTime);
+            if (null == paths)
             { 
-            	if (hopTime < 16){
-            		entry = new RouteTableEntry(dstIp, gwIp, maskIp, ifaceName,hopTime);
-            		this.entries.add(entry);
-            		return true;
-            	}
-            	else {
-            		RouteTableEntry bestMatch = this.getBest(dstIp);
-            		if (bestMatch == null){
-            			entry = new RouteTableEntry(dstIp, gwIp, maskIp, ifaceName,16);
-            			this.entries.add(entry);
-            			return true;
-            		}
-            		return false;
-            	}
+            	if (!entry.isReachable())
+            	{ return false; }
+            	this.publish(trie.insert(entry));
+            	return true;
             }
-            if (hopTime <= entry.getHopTime()){
-		          entry.setGatewayAddress(gwIp);
-		          entry.setInterface(ifaceName);
-		          entry.setHopTime(hopTime);
-		          entry.setTimeAdded();
-		          return true;
+            
+            int hops = paths[0].getHopTime();
+            int match = -1;
+            for (int i = 0; i < paths.length; i++)
+            {
+            	if (gwIp == paths[i].getGatewayAddress() 
+            			&& ifaceName.equals(paths[i].getInterface()))
+            	{ match = i; }
+            }
+            if (match >= 0 && hopTime == hops)
+            {
+            	// Same route; only refresh it
+            	if (paths[match].isReachable())
+            	{ paths[match].setTimeAdded(); }
+            	return false;
             }
+            
+            // Entries in a published snapshot are never modified
+            if (hopTime < hops)
+            { this.publish(trie.insert(entry)); }
+            else if (hopTime == hops && entry.isReachable() 
+            		&& paths.length < MAX_PATHS)
+            { this.publish(trie.insert(appendPath(paths, entry))); }
+            else if (match >= 0 && paths.length > 1)
+            { this.publish(withoutPath(trie, paths, match)); }
+            else if (match >= 0)
+            { this.publish(trie.insert(entry)); }
+            else
+            { return false; }
         }
         return true;
 	}
@@ -223,18 +563,17 @@ public class RouteTable
      * @return a matching entry if one was found, otherwise null
 	 */
     public RouteTableEntry findEntry(int dstIp, int maskIp)
-    {
-        synchronized(this.entries)
-        {
-            for (RouteTableEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
-    }
+    { return this.snapshot.trie.find(dstIp, maskIp); }
+
+    /**
+	 * Find the equal-cost paths for a prefix in the route table.
+	 * @param dstIP destination IP of the prefix
+     * @param maskIp subnet mask of the prefix
+     * @return the paths for the prefix, which must not be modified; null if 
+     *         the prefix is not in the route table
+	 */
+    public RouteTableEntry[] findPaths(int dstIp, int maskIp)
+    { return this.snapshot.trie.findPaths(dstIp, maskIp); }
 
 	/**
 	 * Verify the interface specified in entries in the route table refer to 
@@ -243,12 +582,17 @@ public class RouteTable
 	 * @return true if all entries refer to a valid interface, otherwise false
 	 */
 	public boolean verify(Map<String,Iface> interfaces)
+	{ return verify(this.snapshot.trie, interfaces); }
+	
+	private static boolean verify(PrefixTrie trie, 
+			Map<String,Iface> interfaces)
 	{
-        synchronized(this.entries)
-        { 
-            for (RouteTableEntry entry : this.entries)
+        for (RouteTableEntry entry : trie.getEntries())
+        {
+            for (RouteTableEntry path : trie.findPaths(
+                    entry.getDestinationAddress(), entry.getMaskAddress()))
             {
-                if (!interfaces.containsKey(entry.getInterface()))
+                if (!interfaces.containsKey(path.getInterface()))
                 { return false; }
             }
         }
@@ -257,15 +601,19 @@ public class RouteTable
 	
 	public String toString()
 	{
-        synchronized(this.entries)
-        { 
-            if (0 == this.entries.size())
-            { return " * warning* Routing table empty"; }
-            
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteTableEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
+        PrefixTrie trie = this.snapshot.trie;
+        List<RouteTableEntry> entries = trie.getEntries();
+        if (0 == entries.size())
+        { return " * warning* Routing table empty"; }
+        
+        StringBuilder result = new StringBuilder(
+        		"Destination\tGateway\t\tMask\t\tIface\n");
+        for (RouteTableEntry entry : entries)
+        {
+            for (RouteTableEntry path : trie.findPaths(
+                    entry.getDestinationAddress(), entry.getMaskAddress()))
+            { result.append(path.toString()).append('\n'); }
         }
+	    return result.toString();
 	}
 }
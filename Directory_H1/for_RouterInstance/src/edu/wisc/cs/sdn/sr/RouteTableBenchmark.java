@@ -0,0 +1,96 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures how long it takes to load a large route table, from a text file
+ * and from a binary snapshot, and how fast lookups are once it is loaded.
+ * Usage: RouteTableBenchmark [prefixes [lookups]]
+ */
+public class RouteTableBenchmark
+{
+	private static final int DEFAULT_PREFIXES = 500000;
+	private static final int DEFAULT_LOOKUPS = 10000000;
+	private static final String[] IFACES = { "eth0", "eth1", "eth2", "eth3" };
+
+	public static void main(String[] args) throws IOException
+	{
+		int prefixes = DEFAULT_PREFIXES;
+		int lookups = DEFAULT_LOOKUPS;
+		if (args.length > 0)
+		{ prefixes = Integer.parseInt(args[0]); }
+		if (args.length > 1)
+		{ lookups = Integer.parseInt(args[1]); }
+
+		File textFile = File.createTempFile("rtable", ".txt");
+		File snapshotFile = File.createTempFile("rtable", ".fib");
+		textFile.deleteOnExit();
+		snapshotFile.deleteOnExit();
+
+		// Generate distinct random prefixes, from /8 to /24
+		Random random = new Random(1);
+		Set<Long> generated = new HashSet<Long>();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(textFile));
+		while (generated.size() < prefixes)
+		{
+			int length = 8 + random.nextInt(17);
+			int maskIp = (int)(0xFFFFFFFFL << (32 - length));
+			int dstIp = random.nextInt() & maskIp;
+			if (!generated.add(((long)length << 32) | (dstIp & 0xFFFFFFFFL)))
+			{ continue; }
+			writer.write(String.format("%s %s %s %s\n",
+					Util.intToDottedDecimal(dstIp),
+					Util.intToDottedDecimal(random.nextInt()),
+					Util.intToDottedDecimal(maskIp),
+					IFACES[random.nextInt(IFACES.length)]));
+		}
+		writer.close();
+		System.out.println(String.format("Generated %d prefixes (%d bytes)",
+				prefixes, textFile.length()));
+
+		// Load the text file
+		RouteTable routeTable = new RouteTable();
+		long start = System.nanoTime();
+		if (!routeTable.load(textFile.getPath()))
+		{ System.exit(1); }
+		report("Text load", start, routeTable.size());
+
+		// Write and load a snapshot
+		start = System.nanoTime();
+		if (!routeTable.save(snapshotFile.getPath()))
+		{ System.exit(1); }
+		System.out.println(String.format("Snapshot save: %.1f ms (%d bytes)",
+				(System.nanoTime() - start) / 1e6, snapshotFile.length()));
+
+		RouteTable loaded = new RouteTable();
+		start = System.nanoTime();
+		if (!loaded.load(snapshotFile.getPath()))
+		{ System.exit(1); }
+		report("Snapshot load", start, loaded.size());
+
+		// Look up random addresses
+		int found = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+		{
+			if (loaded.lookup(random.nextInt()) != null)
+			{ found++; }
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format(
+				"Lookups: %d in %.1f ms (%.1f ns each, %d matched)",
+				lookups, elapsed / 1e6, (double)elapsed / lookups, found));
+	}
+
+	private static void report(String what, long start, int size)
+	{
+		System.out.println(String.format("%s: %.1f ms (%d prefixes)", what,
+				(System.nanoTime() - start) / 1e6, size));
+	}
+}
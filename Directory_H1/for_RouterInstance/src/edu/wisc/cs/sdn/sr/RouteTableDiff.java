@@ -0,0 +1,133 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Differences between two versions of a route table: the prefixes that were
+ * added, the prefixes that were removed, and the prefixes whose paths
+ * changed.
+ */
+public class RouteTableDiff
+{
+	/** Largest number of prefixes of each kind listed by toString */
+	private static final int MAX_LISTED = 20;
+
+	private final List<RouteTableEntry[]> added;
+	private final List<RouteTableEntry[]> removed;
+	private final List<RouteTableEntry[]> changed;
+
+	private RouteTableDiff()
+	{
+		this.added = new ArrayList<RouteTableEntry[]>();
+		this.removed = new ArrayList<RouteTableEntry[]>();
+		this.changed = new ArrayList<RouteTableEntry[]>();
+	}
+
+	/**
+	 * Compare two versions of a route table.
+	 * @param before entries in the earlier version
+	 * @param after entries in the later version
+	 * @return the differences between the versions
+	 */
+	public static RouteTableDiff compute(PrefixTrie before, PrefixTrie after)
+	{
+		RouteTableDiff diff = new RouteTableDiff();
+		Map<Long,RouteTableEntry[]> remaining =
+				new HashMap<Long,RouteTableEntry[]>();
+		for (RouteTableEntry entry : before.getEntries())
+		{
+			remaining.put(key(entry), before.findPaths(
+					entry.getDestinationAddress(), entry.getMaskAddress()));
+		}
+
+		for (RouteTableEntry entry : after.getEntries())
+		{
+			RouteTableEntry[] paths = after.findPaths(
+					entry.getDestinationAddress(), entry.getMaskAddress());
+			RouteTableEntry[] old = remaining.remove(key(entry));
+			if (null == old)
+			{ diff.added.add(paths); }
+			else if (!samePaths(old, paths))
+			{ diff.changed.add(paths); }
+		}
+		diff.removed.addAll(remaining.values());
+		return diff;
+	}
+
+	private static long key(RouteTableEntry entry)
+	{
+		return ((long)entry.getMaskAddress() << 32)
+				| (entry.getDestinationAddress() & 0xFFFFFFFFL);
+	}
+
+	private static boolean samePaths(RouteTableEntry[] a, RouteTableEntry[] b)
+	{
+		if (a.length != b.length)
+		{ return false; }
+		for (int i = 0; i < a.length; i++)
+		{
+			if (a[i].getGatewayAddress() != b[i].getGatewayAddress()
+					|| a[i].getHopTime() != b[i].getHopTime()
+					|| !a[i].getInterface().equals(b[i].getInterface()))
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * @return paths of the prefixes that were added
+	 */
+	public List<RouteTableEntry[]> getAdded()
+	{ return Collections.unmodifiableList(this.added); }
+
+	/**
+	 * @return paths, before the change, of the prefixes that were removed
+	 */
+	public List<RouteTableEntry[]> getRemoved()
+	{ return Collections.unmodifiableList(this.removed); }
+
+	/**
+	 * @return paths, after the change, of the prefixes whose paths changed
+	 */
+	public List<RouteTableEntry[]> getChanged()
+	{ return Collections.unmodifiableList(this.changed); }
+
+	/**
+	 * @return true if the versions have the same prefixes and paths
+	 */
+	public boolean isEmpty()
+	{
+		return this.added.isEmpty() && this.removed.isEmpty()
+				&& this.changed.isEmpty();
+	}
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder(String.format(
+				"%d prefixes added, %d removed, %d changed", this.added.size(),
+				this.removed.size(), this.changed.size()));
+		list(result, '+', this.added);
+		list(result, '-', this.removed);
+		list(result, '*', this.changed);
+		return result.toString();
+	}
+
+	private static void list(StringBuilder result, char marker,
+			List<RouteTableEntry[]> prefixes)
+	{
+		for (int i = 0; i < prefixes.size() && i < MAX_LISTED; i++)
+		{
+			for (RouteTableEntry path : prefixes.get(i))
+			{ result.append('\n').append(marker).append(' ').append(path); }
+		}
+		if (prefixes.size() > MAX_LISTED)
+		{
+			result.append(String.format("\n%c ... %d more", marker,
+					prefixes.size() - MAX_LISTED));
+		}
+	}
+}
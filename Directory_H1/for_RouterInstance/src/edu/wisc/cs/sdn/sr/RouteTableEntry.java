@@ -6,6 +6,9 @@ package edu.wisc.cs.sdn.sr;
  */
 public class RouteTableEntry 
 {
+	/** Number of hops to a destination that cannot be reached */
+	public static final int INFINITY = 16;
+	
 	/** Destination IP address */
 	private int destinationAddress;
 	
@@ -19,12 +22,20 @@ public class RouteTableEntry
 	 * the destination or gateway */
 	private String interfaceName;
 	private int hopTime;
-	private long timeAdded;
+	private volatile long timeAdded;
 	//private int timer = 0;
 	public int getHopTime()
 	{ return this.hopTime; }
 	public int setHopTime(int fucktime)
 	{ return this.hopTime = fucktime; }
+	
+	/**
+	 * @return true if packets can be routed using the entry; false if the
+	 *         destination has become unreachable and the entry is only kept
+	 *         until it is garbage collected
+	 */
+	public boolean isReachable()
+	{ return this.hopTime < INFINITY; }
 	/**
 	 * Create a new route table entry.
 	 * @param destinationAddress destination IP address
@@ -0,0 +1,140 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a route table file, and reloads the router's route table whenever
+ * the file changes. The file is read and the new table swapped in on the
+ * watcher's own thread, so packets keep being forwarded with the old table
+ * until the new one is ready.
+ */
+public class RouteTableWatcher
+{
+	/** Time (in milliseconds) without further changes to the file before it
+	 * is reloaded, so a file written in several steps is read once it is
+	 * complete */
+	private static final long SETTLE_TIME = 250;
+
+	/** Router whose route table is reloaded */
+	private final Router router;
+
+	/** Route table file */
+	private final Path file;
+
+	/** Notifies the watcher of changes in the file's directory */
+	private final WatchService watchService;
+
+	/** Thread waiting for changes and reloading the file */
+	private final Thread watchThread;
+
+	private RouteTableWatcher(Router router, Path file,
+			WatchService watchService)
+	{
+		this.router = router;
+		this.file = file;
+		this.watchService = watchService;
+		this.watchThread = new Thread(new Runnable()
+			{
+				public void run()
+				{ watch(); }
+			}, "sr-rtable-watcher");
+		this.watchThread.setDaemon(true);
+	}
+
+	/**
+	 * Start watching a route table file.
+	 * @param router router whose route table is reloaded
+	 * @param filename name of the route table file
+	 * @return the watcher; null if the file cannot be watched
+	 */
+	public static RouteTableWatcher start(Router router, String filename)
+	{
+		Path file = Paths.get(filename).toAbsolutePath();
+		WatchService watchService;
+		try
+		{
+			watchService = FileSystems.getDefault().newWatchService();
+			// Watch the directory, since editors often replace the file
+			file.getParent().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		RouteTableWatcher watcher =
+				new RouteTableWatcher(router, file, watchService);
+		watcher.watchThread.start();
+		return watcher;
+	}
+
+	/**
+	 * Wait for changes to the file, and reload the route table after each
+	 * burst of changes, until the watcher is stopped.
+	 */
+	private void watch()
+	{
+		try
+		{
+			while (true)
+			{
+				if (!this.fileChanged(this.watchService.take()))
+				{ continue; }
+
+				// Wait for the file to settle
+				WatchKey key;
+				while ((key = this.watchService.poll(SETTLE_TIME,
+						TimeUnit.MILLISECONDS)) != null)
+				{ this.fileChanged(key); }
+
+				this.router.reloadRouteTable(this.file.toString());
+			}
+		}
+		catch (InterruptedException e)
+		{ }
+		catch (ClosedWatchServiceException e)
+		{ }
+	}
+
+	/**
+	 * Check whether events from the watch service include a change to the
+	 * file, and re-arm the watch.
+	 * @param key events from the watch service
+	 * @return true if the file changed, otherwise false
+	 */
+	private boolean fileChanged(WatchKey key)
+	{
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (StandardWatchEventKinds.OVERFLOW == event.kind()
+					|| this.file.getFileName().equals(event.context()))
+			{ changed = true; }
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	public void stop()
+	{
+		try
+		{ this.watchService.close(); }
+		catch (IOException e)
+		{ }
+	}
+}
@@ -22,6 +22,9 @@ import net.floodlightcontroller.util.MACAddress;
  */
 public class Router 
 {
+	/** Largest route table that is printed in full when loaded */
+	private static final int MAX_PRINTED_ROUTES = 1000;
+	
 	/** User under which the router is running */
 	private String user;
 	
@@ -43,6 +46,12 @@ public class Router
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 	
+	/** Scheduler for the router's timed events */
+	private Scheduler scheduler;
+	
+	/** Cache of recent forwarding decisions for the router */
+	private RouteCache routeCache;
+	
 	/** PCAP dump file for logging all packets sent/received by the router;
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
@@ -53,6 +62,14 @@ public class Router
     /** RIP subsystem */
     private RIP rip;
 	
+	/** Whether gratuitous ARP packets are sent for each interface when the
+	 * router is initialized */
+	private boolean announceInterfaces;
+	
+	/** Reloads the route table when its file changes; null if the file is
+	 * not watched */
+	private RouteTableWatcher routeTableWatcher;
+	
 	/**
 	 * Creates a router for a specific topology, host, and user.
 	 * @param topo topology ID for the router
@@ -70,13 +87,36 @@ public class Router
 		this.logfile = null;
 		this.interfaces = new HashMap<String,Iface>();
 		this.routeTable = new RouteTable();
+		this.scheduler = new Scheduler();
 		this.arpCache = new ArpCache(this);
+		this.routeCache = new RouteCache();
 		this.vnsComm = null;
         this.rip = new RIP(this);
+		this.announceInterfaces = false;
+		this.routeTableWatcher = null;
 	}
 	
 	public void init()
-	{ this.rip.init(); }
+	{
+		// Let directly connected hosts learn the router's addresses before 
+		// they have traffic for it
+		if (this.announceInterfaces)
+		{
+			for (Iface iface : this.interfaces.values())
+			{
+				if (iface.getIpAddress() != 0)
+				{ this.arpCache.announce(iface); }
+			}
+		}
+		this.rip.init(); 
+	}
+	
+	/**
+	 * @param announceInterfaces whether gratuitous ARP packets are sent for
+	 *        each interface when the router is initialized
+	 */
+	public void setAnnounceInterfaces(boolean announceInterfaces)
+	{ this.announceInterfaces = announceInterfaces; }
 	
 	/**
 	 * @param logfile PCAP dump file for logging all packets sent/received by 
@@ -134,6 +174,18 @@ public class Router
 	public short getTopo()
 	{ return this.topo; }
 	
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+	
+	/**
+	 * @return scheduler for the router's timed events
+	 */
+	public Scheduler getScheduler()
+	{ return this.scheduler; }
+	
 	/**
 	 * @return routing table for the router
 	 */
@@ -154,10 +206,20 @@ public class Router
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Stop the router's timed events, and close the PCAP dump file for the 
+	 * router, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		if (this.routeTableWatcher != null)
+		{ this.routeTableWatcher.stop(); }
+		this.scheduler.shutdown();
+		if (this.arpCache.getDroppedPackets() > 0)
+		{
+			System.err.println(String.format(
+					"%d packets dropped waiting for ARP replies",
+					this.arpCache.getDroppedPackets()));
+		}
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -177,10 +239,78 @@ public class Router
 		
 		System.out.println("Loading routing table");
 		System.out.println("---------------------------------------------");
-		System.out.print(this.routeTable.toString());
+		if (this.routeTable.size() > MAX_PRINTED_ROUTES)
+		{
+			System.out.println(String.format("%d prefixes", 
+					this.routeTable.size()));
+		}
+		else
+		{ System.out.print(this.routeTable.toString()); }
 		System.out.println("---------------------------------------------");
 	}
 	
+	/**
+	 * Write a binary snapshot of the route table.
+	 * @param snapshotFile name of the file to write
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean saveRouteTable(String snapshotFile)
+	{ return this.routeTable.save(snapshotFile); }
+	
+	/**
+	 * Replace the routing table with the contents of a file, without 
+	 * interrupting forwarding, and report the prefixes that changed. Only a
+	 * static routing table is reloaded; a table managed by RIP is left
+	 * alone, since the file holds none of the routes RIP learned.
+	 * @param routeTableFile name of the file containing the routing table
+	 * @return true if the routing table was replaced, otherwise false
+	 */
+	public boolean reloadRouteTable(String routeTableFile)
+	{
+		if (this.rip.isRunning())
+		{
+			System.err.println("Not reloading routing table from file "
+					+ routeTableFile + ", routes are managed by RIP");
+			return false;
+		}
+
+		long start = System.nanoTime();
+		RouteTableDiff diff = 
+				this.routeTable.reload(routeTableFile, this.interfaces);
+		if (null == diff)
+		{
+			System.err.println("Error reloading routing table from file "
+					+ routeTableFile + ", keeping current routing table");
+			return false;
+		}
+		
+		System.out.println(String.format(
+				"Reloaded routing table from file %s in %.1f ms", 
+				routeTableFile, (System.nanoTime() - start) / 1e6));
+		System.out.println(diff);
+		return true;
+	}
+	
+	/**
+	 * Reload the routing table whenever its file changes. The file is not
+	 * watched if RIP is managing the routing table (see reloadRouteTable).
+	 * @param routeTableFile name of the file containing the routing table
+	 * @return true if the file is being watched, otherwise false
+	 */
+	public boolean watchRouteTable(String routeTableFile)
+	{
+		if (this.rip.isRunning())
+		{
+			System.err.println("Not watching routing table file "
+					+ routeTableFile + ", routes are managed by RIP");
+			return false;
+		}
+
+		this.routeTableWatcher =
+				RouteTableWatcher.start(this, routeTableFile);
+		return this.routeTableWatcher != null;
+	}
+	
 	/**
 	 * Add an interface to the router.
 	 * @param ifaceName the name of the interface
@@ -211,6 +341,18 @@ public class Router
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send an already serialized Ethernet frame out a specific interface.
+	 * @param frame serialized Ethernet frame with all fields filled in
+	 * @param iface interface out which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendRawPacket(byte[] frame, Iface iface)
+	{
+		return this.vnsComm.sendRawPacket(frame, 0, frame.length, 
+				iface.getName());
+	}
+	
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -257,6 +399,12 @@ public class Router
 	public final int DEST_HOST_UNREACHABLE = 2;
 	private final int DEST_PORT_UNREACHABLE = 3;
 	private final int ICMP_ECHO_REPLY = 4;
+	private static final int ETHER_HEADER_LENGTH = 14;
+	private static final int IP_MIN_HEADER_LENGTH = 20;
+	
+	/** Flows are divided into 2^8 groups when choosing among equal-cost 
+	 * paths; all flows in a group take the same path */
+	private static final int FLOW_GROUP_BITS = 8;
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		/*
@@ -271,24 +419,17 @@ public class Router
 		System.out.println("Handle Normal IP packet");
 
 		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum){ 
+		if (!ipPacket.isChecksumValid()){ 
 			return; 
 		}
 		
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+		// Check TTL; the checksum is updated along with the TTL
+		ipPacket.decrementTtl();
 		if (0 == ipPacket.getTtl()){ 
 			sendICMP(TIME_EXCEEDED, etherPacket);
 			return; 
 		}
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
 		System.out.println("OK checksum and TTL");
 		// Check if packet is destined for one of router's interfaces
 		for (Iface iface : this.interfaces.values()){
@@ -310,22 +451,69 @@ public class Router
 		// Do route lookup and forward
 		this.forwardIpPacket(etherPacket, inIface);
 	}
-	private RouteTableEntry getBest(int dstAddr){
-		List<RouteTableEntry> fuck = routeTable.getEntries();
-		RouteTableEntry bestMatch =null;
-		long t = 0;
-		for (RouteTableEntry x : fuck){
-			int ccc1 = ( x.getMaskAddress() & dstAddr );
-			int ccc2 = ( x.getDestinationAddress() & x.getMaskAddress() );
-			if (ccc1 == ccc2){
-				if (x.getMaskAddress()<t){
-					System.out.println("Find best match!");		
-					t = x.getMaskAddress();
-					bestMatch = x;
-				}
-			}
+	/**
+	 * Choose one of the equal-cost paths to a destination for a flow. Flows 
+	 * are divided into groups by their hash, and each group always takes the
+	 * same path while the paths are unchanged, so packets of a flow are not
+	 * reordered.
+	 * @param paths paths to the destination
+	 * @param flowGroup group of the flow; see flowGroup
+	 * @return the path the flow takes
+	 */
+	private static RouteTableEntry selectPath(RouteTableEntry[] paths, 
+			int flowGroup)
+	{ return paths[(flowGroup * paths.length) >>> FLOW_GROUP_BITS]; }
+	
+	/**
+	 * @param flowHash hash of a flow's 5-tuple
+	 * @return the group of the flow, between 0 and 2^FLOW_GROUP_BITS - 1
+	 */
+	private static int flowGroup(int flowHash)
+	{ return flowHash >>> (32 - FLOW_GROUP_BITS); }
+	
+	/**
+	 * Determine the interface and next hop MAC address for forwarding a flow's
+	 * packets to a destination, using the cached decision if it is still 
+	 * valid.
+	 * @param dstAddr destination IP address
+	 * @param flowHash hash of the flow's 5-tuple; see IPv4.getFlowHash
+	 * @return the forwarding decision; null if there is no route to the
+	 *         destination or the MAC address of the next hop is not known
+	 */
+	private RouteCache.Entry resolve(int dstAddr, int flowHash)
+	{
+		// Use the cached forwarding decision for the destination, if the 
+		// route table and ARP cache have not changed since it was made
+		int flowGroup = flowGroup(flowHash);
+		long routeVersion = this.routeTable.getVersion();
+		long arpVersion = this.arpCache.getVersion();
+		RouteCache.Entry cached = this.routeCache.lookup(dstAddr, flowGroup,
+				routeVersion, arpVersion);
+		if (cached != null)
+		{
+			// Keep the next hop's ARP entry refreshed while it is in use
+			cached.getArpEntry().markUsed();
+			return cached; 
 		}
-		return bestMatch;
+		
+		RouteTableEntry[] paths = this.routeTable.lookupPaths(dstAddr);
+		if (null == paths)
+		{ return null; }
+		RouteTableEntry bestMatch = selectPath(paths, flowGroup);
+		Iface outIface = this.interfaces.get(bestMatch.getInterface());
+		if (null == outIface)
+		{ return null; }
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = dstAddr; }
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		if (null == arpEntry)
+		{ return null; }
+		arpEntry.markUsed();
+		if (1 == paths.length)
+		{ flowGroup = RouteCache.ALL_FLOWS; }
+		return this.routeCache.insert(dstAddr, flowGroup, routeVersion, 
+				arpVersion, bestMatch, outIface, arpEntry);
 	}
 	
 	private void forwardIpPacket(Ethernet etherPacket, Iface inIface)
@@ -335,40 +523,121 @@ public class Router
 		
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
-		System.out.println("Forward IP Packet Route Table:\n"+this.getRouteTable());
-		// Find matching route table entry 
+		int flowHash = ipPacket.getFlowHash();
+		
+		RouteCache.Entry decision = this.resolve(dstAddr, flowHash);
+		if (decision != null)
+		{
+			// Make sure we don't sent a packet back out the interface it 
+			// came in
+			if (decision.getIface() == inIface)
+			{ return; }
+			etherPacket.setSourceMACAddress(
+					decision.getIface().getMacAddress().toLong());
+			etherPacket.setDestinationMACAddress(
+					decision.getArpEntry().getMac().toLong());
+			this.sendPacket(etherPacket, decision.getIface());
+			return;
+		}
 		
-		RouteTableEntry bestMatch = getBest(dstAddr);
-		if (null == bestMatch){ 
+		// Find matching route table entry 
+		RouteTableEntry[] paths = this.routeTable.lookupPaths(dstAddr);
+		if (null == paths){ 
 			sendICMP(DEST_NET_UNREACHABLE, etherPacket);
 			return; 
 		}
+		RouteTableEntry bestMatch = selectPath(paths, flowGroup(flowHash));
 		// Make sure we don't sent a packet back out the interface it came in
 		Iface outIface = interfaces.get(bestMatch.getInterface());
 		if (outIface == inIface){ 
 			return; 
 		}
 		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		etherPacket.setSourceMACAddress(outIface.getMacAddress().toLong());
 
 		// If no gateway, then nextHop is IP destination
 		int nextHop = bestMatch.getGatewayAddress();
 		if (0 == nextHop){ 
 			nextHop = dstAddr; 
 		}
-		// Set destination MAC address in Ethernet header
-		ArpEntry arpEntry = arpCache.lookup(nextHop);
-		if (null == arpEntry){ 
-			//handleArpMiss(nextHop, etherPacket, inIface, outIface);
-			arpCache.waitForArp(etherPacket,outIface,nextHop);
-			return;
+		// Wait for the MAC address of the next hop to be resolved
+		arpCache.waitForArp(etherPacket,outIface,nextHop);
+	}
+	
+	/**
+	 * Determine whether an Ethernet frame received on a specific interface 
+	 * can be forwarded without decoding it. This is the case for an intact 
+	 * IPv4 packet that is not addressed to the router or a multicast group,
+	 * has TTL remaining, and has a route and resolved next hop; everything 
+	 * else must be decoded and passed to handlePacket.
+	 * @param frame buffer containing the Ethernet frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return the forwarding decision for the frame; null if the frame must
+	 *         be decoded
+	 */
+	public RouteCache.Entry routeRawPacket(byte[] frame, int offset, 
+			int length, Iface inIface)
+	{
+		if (length < ETHER_HEADER_LENGTH + IP_MIN_HEADER_LENGTH
+				|| getShort(frame, offset + 12) != Ethernet.TYPE_IPv4)
+		{ return null; }
+		
+		int ipOffset = offset + ETHER_HEADER_LENGTH;
+		int versionAndLength = frame[ipOffset] & 0xff;
+		int headerLength = (versionAndLength & 0xf) * 4;
+		if ((versionAndLength >> 4) != 4 
+				|| headerLength < IP_MIN_HEADER_LENGTH
+				|| length < ETHER_HEADER_LENGTH + headerLength)
+		{ return null; }
+		
+		// TTL expiring requires an ICMP time exceeded message
+		if ((frame[ipOffset + 8] & 0xff) <= 1)
+		{ return null; }
+		
+		if (!IPv4.isHeaderChecksumValid(frame, ipOffset, headerLength))
+		{ return null; }
+		
+		int dstAddr = getInt(frame, ipOffset + 16);
+		if ((dstAddr & 0xF0000000) == 0xE0000000 || -1 == dstAddr)
+		{ return null; }
+		for (Iface iface : this.interfaces.values())
+		{
+			if (dstAddr == iface.getIpAddress())
+			{ return null; }
 		}
-		System.out.println("Forward Successfull!");
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
-		this.sendPacket(etherPacket, outIface);
+		
+		RouteCache.Entry decision = this.resolve(dstAddr, IPv4.flowHash(frame,
+				ipOffset, length - ETHER_HEADER_LENGTH));
+		if (null == decision || decision.getIface() == inIface)
+		{ return null; }
+		return decision;
 	}
 	
-
+	/**
+	 * Rewrite an Ethernet frame in place for forwarding: decrement the IPv4 
+	 * TTL, incrementally update the IPv4 checksum, and set the MAC addresses
+	 * for the next hop.
+	 * @param frame buffer containing the Ethernet frame
+	 * @param offset offset of the frame in the buffer
+	 * @param decision forwarding decision returned by routeRawPacket
+	 */
+	public void rewriteRawPacket(byte[] frame, int offset, 
+			RouteCache.Entry decision)
+	{
+		IPv4.decrementTtl(frame, offset + ETHER_HEADER_LENGTH);
+		decision.getArpEntry().getMac().writeTo(frame, offset);
+		decision.getIface().getMacAddress().writeTo(frame, 
+				offset + Ethernet.DATALAYER_ADDRESS_LENGTH);
+	}
+	
+	private static short getShort(byte[] data, int offset)
+	{ return (short)(((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff)); }
+	
+	private static int getInt(byte[] data, int offset)
+	{ return ((getShort(data, offset) & 0xffff) << 16) | (getShort(data, offset + 2) & 0xffff); }
+	
 	/**
 	 * Handle an ARP packet received on a specific interface.
 	 * @param etherPacket the complete ARP packet that was received
@@ -389,40 +658,66 @@ public class Router
 		switch(arpPacket.getOpCode())
 		{
 		case ARP.OP_REQUEST:
+			// Learn the requester's address, if snooping, before replying
+			this.snoopArpPacket(arpPacket, inIface);
+			
 			// Check if request is for one of my interfaces
 			if (targetIp == inIface.getIpAddress())
 			{ this.arpCache.sendArpReply(etherPacket, inIface); }
 			break;
 		case ARP.OP_REPLY:
-			// Check if reply is for one of my interfaces
+			// Check if reply is for one of my interfaces; other replies, such
+			// as gratuitous ARP replies, are only used when snooping
 			if (targetIp != inIface.getIpAddress())
-			{ break; }
+			{
+				this.snoopArpPacket(arpPacket, inIface);
+				break;
+			}
 			
 			// Update ARP cache with contents of ARP reply
 		    int senderIp = ByteBuffer.wrap(
 				    arpPacket.getSenderProtocolAddress()).getInt();
 			// get the ip 
-			ArpRequest request = this.arpCache.insert(
-					new MACAddress(arpPacket.getSenderHardwareAddress()),
-					senderIp);
-			MACAddress mac = MACAddress.valueOf(arpPacket.getSenderHardwareAddress());
+			MACAddress mac = MACAddress.valueOf(
+					arpPacket.getSenderHardwareAddressAsLong());
+			ArpRequest request = this.arpCache.insert(mac, senderIp, inIface);
 			// Process pending ARP request entry, if there is one
 			if (request != null)
-			{				
-				for (Ethernet packet : request.getWaitingPackets())
-				{
-					System.out.println("ARP Reply and resend the queue");
-					packet.setDestinationMACAddress(mac.toBytes());
-					sendPacket(packet, request.getIface());
-					/*********************************************************/
-					/* TODO: send packet waiting on this request             */
-					
-					/*********************************************************/
-				}
-			}
+			{ this.sendWaitingPackets(request, mac); }
 			break;
 		}
 	}
+	
+	/**
+	 * Learn the sender's address from an ARP packet that is not a reply to
+	 * the router, if ARP snooping is enabled, and send any packets that were
+	 * waiting for it.
+	 * @param arpPacket ARP packet received by the router
+	 * @param inIface interface on which the packet was received
+	 */
+	public void snoopArpPacket(ARP arpPacket, Iface inIface)
+	{
+		ArpRequest request = this.arpCache.snoop(arpPacket, inIface);
+		if (request != null)
+		{
+			this.sendWaitingPackets(request, MACAddress.valueOf(
+					arpPacket.getSenderHardwareAddressAsLong()));
+		}
+	}
+	
+	/**
+	 * Send the packets that were waiting on a resolved ARP request.
+	 * @param request the closed request
+	 * @param mac MAC address to which the request resolved
+	 */
+	private void sendWaitingPackets(ArpRequest request, MACAddress mac)
+	{
+		for (byte[] frame : request.getWaitingPackets())
+		{
+			mac.writeTo(frame, 0);
+			sendRawPacket(frame, request.getIface());
+		}
+	}
 	public void sendICMP(int type, Ethernet etherPacket)
 	{
 		Ethernet ether = new Ethernet();
@@ -432,7 +727,7 @@ public class Router
 		
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int srcAddr = ipPacket.getSourceAddress();
-		RouteTableEntry bestMatch = getBest(srcAddr);
+		RouteTableEntry bestMatch = this.routeTable.lookup(srcAddr);
 		
 		if (null == bestMatch){  	
 			return;   
@@ -447,7 +742,7 @@ public class Router
 
     // set ether 
 		ether.setEtherType(Ethernet.TYPE_IPv4);
-		ether.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		ether.setSourceMACAddress(outIface.getMacAddress().toLong());
 		// set ip
 		ip.setTtl((byte)64);
 		ip.setProtocol(IPv4.PROTOCOL_ICMP);
@@ -502,13 +797,10 @@ public class Router
 		data.setData(iData);
 		icmp.setPayload(data);
 		icmp.setChecksum((short)(0));
-		byte[] serialized = icmp.serialize();
-		icmp.deserialize(serialized, 0, serialized.length);
 		
+		// Checksums are computed when the frame is serialized for sending
 		ip.setPayload(icmp);
 		ip.setChecksum((short)(0));
-		serialized = ip.serialize();
-		ip.deserialize(serialized, 0, serialized.length);
 		System.out.println("good RIP for ICMP");
 		ether.setPayload(ip);
 		
@@ -517,7 +809,7 @@ public class Router
 			arpCache.waitForArp(ether,outIface,nextHop);
 			return;   
 		}
-		ether.setDestinationMACAddress(arpEntry.getMac().toBytes());
+		ether.setDestinationMACAddress(arpEntry.getMac().toLong());
 		System.out.println("good ARP for ICMP");
 		System.out.println(":::::ICMP:::::");
 		System.out.println(icmp.toString());
@@ -0,0 +1,87 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs timed events for a router, such as retransmitting ARP requests and
+ * timing out ARP and route table entries. Each event is scheduled
+ * individually, so the cost of timeouts depends on the number of events
+ * that fire rather than the size of the tables, and events fire when they
+ * are due rather than at the next scan of a table.
+ */
+public class Scheduler
+{
+	/** Executor running the events on a single thread */
+	private ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Create a scheduler with no events.
+	 */
+	public Scheduler()
+	{
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "sr-scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Remove cancelled events immediately, rather than when they are due
+		this.executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Wrap an event so that an exception is reported and, for a periodic
+	 * event, does not prevent the event from running again.
+	 */
+	private static Runnable guard(final Runnable event)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				try
+				{ event.run(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		};
+	}
+
+	/**
+	 * Run an event once after a delay.
+	 * @param event event to run
+	 * @param delay delay (in milliseconds) before the event runs
+	 * @return handle for cancelling the event
+	 */
+	public ScheduledFuture<?> schedule(Runnable event, long delay)
+	{
+		return this.executor.schedule(guard(event), delay,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run an event repeatedly at a fixed interval.
+	 * @param event event to run
+	 * @param initialDelay delay (in milliseconds) before the event first runs
+	 * @param period interval (in milliseconds) between runs of the event
+	 * @return handle for cancelling the event
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable event,
+			long initialDelay, long period)
+	{
+		return this.executor.scheduleAtFixedRate(guard(event), initialDelay,
+				period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancel all events and stop the scheduler.
+	 */
+	public void shutdown()
+	{ this.executor.shutdownNow(); }
+}
@@ -1,9 +1,5 @@
 package edu.wisc.cs.sdn.sr;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-
 /**
  * @author Aaron Gember-Jacobson
  */
@@ -30,13 +26,35 @@ public class Util
 	 * Convert a string with the IP address in dotted decimal format into an 
 	 * integer representing the IP address.
 	 * @param ip string with an IP address in dotted decimal format
-	 * @return integer representing the IP address
+	 * @return integer representing the IP address; 0 if the string is not a
+	 *         valid IP address
 	 */
 	public static int dottedDecimalToInt(String ip)
 	{
-		try 
-		{ return ByteBuffer.wrap(InetAddress.getByName(ip).getAddress()).getInt(); }
-		catch (UnknownHostException e) 
+		// Parse the address directly, since InetAddress may resolve names
+		int address = 0;
+		int octet = 0;
+		int value = -1;
+		for (int i = 0; i < ip.length(); i++)
+		{
+			char c = ip.charAt(i);
+			if (c >= '0' && c <= '9')
+			{
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > 255)
+				{ return 0; }
+			}
+			else if ('.' == c && value >= 0 && octet < 3)
+			{
+				address = (address << 8) | value;
+				octet++;
+				value = -1;
+			}
+			else
+			{ return 0; }
+		}
+		if (octet != 3 || value < 0)
 		{ return 0; }
+		return (address << 8) | value;
 	}
 }
@@ -6,6 +6,15 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the interface name field */
+	public static final int IFACE_NAME_LENGTH = 16;
+	
+	/** Offset of the interface name field in a serialized command */
+	public static final int IFACE_NAME_OFFSET = 8;
+	
+	/** Offset of the Ethernet frame in a serialized command */
+	public static final int FRAME_OFFSET = IFACE_NAME_OFFSET + IFACE_NAME_LENGTH;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -16,38 +25,121 @@ public class CommandPacket extends Command
 	{
 		super.deserialize(buf);
 				
-		byte[] tmpBytes = new byte[16];
+		byte[] tmpBytes = new byte[IFACE_NAME_LENGTH];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
         this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		this.etherPacket.deserialize(buf.array(), 
+				buf.arrayOffset() + buf.position(), buf.remaining());
 		
 		return this;
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + 16; }
+	{ return super.getSize() + IFACE_NAME_LENGTH; }
+	
+	/**
+	 * Overwrite the interface name field of a serialized command.
+	 * @param data buffer containing the serialized command
+	 * @param offset offset of the command in the buffer
+	 * @param ifaceName the new interface name
+	 */
+	protected static void putInterfaceName(byte[] data, int offset,
+			String ifaceName)
+	{
+		for (int i = 0; i < IFACE_NAME_LENGTH; i++)
+		{
+			data[offset + IFACE_NAME_OFFSET + i] = (i < ifaceName.length()) 
+					? (byte)ifaceName.charAt(i) : 0;
+		}
+	}
+	
+	/**
+	 * Write the interface name field of a command being serialized.
+	 * @param buf buffer positioned at the interface name field
+	 * @param ifaceName the interface name
+	 */
+	protected static void putInterfaceName(ByteBuffer buf, String ifaceName)
+	{
+		for (int i = 0; i < IFACE_NAME_LENGTH; i++)
+		{
+			buf.put((i < ifaceName.length()) 
+					? (byte)ifaceName.charAt(i) : 0);
+		}
+	}
+	
+	/**
+	 * Check whether the interface name field of a serialized command matches
+	 * an interface name, without decoding the field.
+	 * @param data buffer containing the serialized command
+	 * @param offset offset of the command in the buffer
+	 * @param ifaceName the interface name to compare against
+	 * @return true if the names match, otherwise false
+	 */
+	protected static boolean matchesInterfaceName(byte[] data, int offset,
+			String ifaceName)
+	{
+		int length = ifaceName.length();
+		if (length > IFACE_NAME_LENGTH)
+		{ return false; }
+		offset += IFACE_NAME_OFFSET;
+		for (int i = 0; i < length; i++)
+		{
+			if (data[offset + i] != (byte)ifaceName.charAt(i))
+			{ return false; }
+		}
+		return (IFACE_NAME_LENGTH == length || 0 == data[offset + length]);
+	}
+	
+	/**
+	 * Serialize a command carrying an already serialized Ethernet frame.
+	 * @param ifaceName name of the interface out which the frame is sent
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return the serialized command
+	 */
+	protected static byte[] serialize(String ifaceName, byte[] frame, 
+			int offset, int length)
+	{
+		byte[] data = new byte[FRAME_OFFSET + length];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.putInt(data.length);
+		bb.putInt(Command.VNS_PACKET);
+		putInterfaceName(data, 0, ifaceName);
+		System.arraycopy(frame, offset, data, FRAME_OFFSET, length);
+		return data;
+	}
+	
+	/**
+	 * @return length of the command when serialized, including the Ethernet
+	 *         frame
+	 */
+	protected int getSerializedLength()
+	{ return this.getSize() + this.etherPacket.getSerializedLength(); }
+	
+	/**
+	 * Serialize the command into a buffer, writing the Ethernet frame 
+	 * directly after the command header; the length of the command must 
+	 * already be set.
+	 * @param buf buffer with at least the command's length remaining
+	 * @return buf, positioned after the command
+	 */
+	protected ByteBuffer serializeInto(ByteBuffer buf)
+	{
+		buf.putInt(this.mLen);
+		buf.putInt(this.mType);
+		putInterfaceName(buf, this.mInterfaceName);
+		this.etherPacket.serializeInto(buf);
+		return buf;
+	}
 	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
-		this.mLen = size;
-		
-		byte[] data = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
-        
-        return data;
+		this.mLen = this.getSerializedLength();
+		byte[] data = new byte[this.mLen];
+		this.serializeInto(ByteBuffer.wrap(data));
+		return data;
 	}
 }
@@ -0,0 +1,243 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Processes packets received from the VNS server on several threads. The
+ * thread reading from the server frames commands and hands each packet to
+ * one of a pool of worker threads, chosen by a hash of the packet's flow so
+ * the packets of a flow are processed in order. Workers pass packets to the
+ * router, and the commands they produce are written to the server by a
+ * dedicated writer thread.
+ */
+public class PacketPipeline
+{
+	/** Maximum number of packets waiting to be processed by each worker */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	/** Time (in nanoseconds) the reader waits for a full worker queue to
+	 * drain before trying again */
+	private static final long BACKOFF_NANOS = 10 * 1000;
+
+	/** Thread that processes the packets in one flow partition */
+	private class Worker implements Runnable
+	{
+		/** Packets waiting to be processed; added by the reader thread */
+		private SpscQueue<ByteBuffer> queue;
+
+		/** Thread running the worker */
+		private Thread thread;
+
+		/** Whether the worker is waiting for packets to be queued */
+		private volatile boolean waiting;
+
+		private Worker(int index)
+		{
+			this.queue = new SpscQueue<ByteBuffer>(QUEUE_CAPACITY);
+			this.thread = new Thread(this, "sr-worker-" + index);
+			this.thread.setDaemon(true);
+			this.waiting = false;
+		}
+
+		/**
+		 * Process queued packets until the pipeline is stopped and no packets
+		 * remain.
+		 */
+		public void run()
+		{
+			while (true)
+			{
+				ByteBuffer buf = this.queue.poll();
+				if (null == buf)
+				{
+					if (!running)
+					{ break; }
+
+					// Sleep until the reader queues a packet
+					this.waiting = true;
+					if (this.queue.isEmpty() && running)
+					{ LockSupport.park(this); }
+					this.waiting = false;
+					continue;
+				}
+
+				try
+				{ vnsComm.handlePacketCommand(buf); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}
+	}
+
+	/** Thread that writes the commands produced by the workers */
+	private class Writer implements Runnable
+	{
+		/**
+		 * Write queued commands until the pipeline is stopped and no commands
+		 * remain.
+		 */
+		public void run()
+		{
+			while (true)
+			{
+				if (!vnsComm.flush())
+				{ break; }
+				if (!running && !vnsComm.hasQueuedWrites())
+				{ break; }
+
+				// Sleep until a worker queues a command
+				writerWaiting = true;
+				if (!vnsComm.hasQueuedWrites() && running)
+				{ LockSupport.park(this); }
+				writerWaiting = false;
+			}
+		}
+	}
+
+	/** Connection to the VNS server */
+	private VNSComm vnsComm;
+
+	/** Workers, each processing one partition of the flows */
+	private Worker[] workers;
+
+	/** Thread writing commands to the server */
+	private Thread writerThread;
+
+	/** Whether the writer is waiting for commands to be queued */
+	private volatile boolean writerWaiting;
+
+	/** Whether the pipeline is accepting packets */
+	private volatile boolean running;
+
+	/**
+	 * Create a pipeline for processing the packets received from the server.
+	 * @param vnsComm connection to the VNS server
+	 * @param workerCount number of worker threads
+	 */
+	public PacketPipeline(VNSComm vnsComm, int workerCount)
+	{
+		this.vnsComm = vnsComm;
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++)
+		{ this.workers[i] = new Worker(i); }
+		this.writerThread = new Thread(new Writer(), "sr-writer");
+		this.writerThread.setDaemon(true);
+		this.writerWaiting = false;
+		this.running = false;
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public int getWorkerCount()
+	{ return this.workers.length; }
+
+	/**
+	 * Start the worker and writer threads.
+	 */
+	public void start()
+	{
+		this.running = true;
+		for (Worker worker : this.workers)
+		{ worker.thread.start(); }
+		this.writerThread.start();
+	}
+
+	/**
+	 * Stop accepting packets, and wait for the workers to process the packets
+	 * already queued and the writer to write the resulting commands.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		try
+		{
+			for (Worker worker : this.workers)
+			{
+				LockSupport.unpark(worker.thread);
+				worker.thread.join();
+			}
+			LockSupport.unpark(this.writerThread);
+			this.writerThread.join();
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Hand a VNS_PACKET command to the worker responsible for its flow; must
+	 * only be called by the thread reading from the server. Waits if the
+	 * worker already has QUEUE_CAPACITY packets waiting.
+	 * @param command buffer containing the serialized command between its
+	 *        position and limit; copied, so the buffer may be reused
+	 */
+	public void dispatch(ByteBuffer command)
+	{
+		byte[] data = new byte[command.remaining()];
+		command.get(data);
+
+		int hash = flowHash(data, CommandPacket.FRAME_OFFSET,
+				data.length - CommandPacket.FRAME_OFFSET);
+		Worker worker = this.workers[
+				(int)((hash & 0xFFFFFFFFL) % this.workers.length)];
+
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (!worker.queue.offer(buf))
+		{ LockSupport.parkNanos(BACKOFF_NANOS); }
+		if (worker.waiting)
+		{ LockSupport.unpark(worker.thread); }
+	}
+
+	/**
+	 * Wake the writer thread, if it is waiting, after a command is queued.
+	 */
+	public void wakeWriter()
+	{
+		if (this.writerWaiting)
+		{ LockSupport.unpark(this.writerThread); }
+	}
+
+	/**
+	 * Compute a hash of the flow to which an Ethernet frame belongs. IPv4
+	 * packets are identified by their addresses and protocol, plus their
+	 * ports if they are unfragmented TCP or UDP packets; all other frames
+	 * belong to a single flow.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the frame's flow
+	 */
+	private static int flowHash(byte[] frame, int offset, int length)
+	{
+		if (length < 34
+				|| ((frame[offset + 12] & 0xff) << 8 | (frame[offset + 13] & 0xff))
+					!= (Ethernet.TYPE_IPv4 & 0xffff))
+		{ return 0; }
+
+		int ip = offset + 14;
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		byte protocol = frame[ip + 9];
+		int hash = getInt(frame, ip + 12);
+		hash = hash * 31 + getInt(frame, ip + 16);
+		hash = hash * 31 + protocol;
+
+		// Fragments after the first carry no ports, so include ports only when
+		// all of the packet's data is in this frame
+		boolean fragmented = ((frame[ip + 6] & 0x3f) | frame[ip + 7]) != 0;
+		if ((IPv4.PROTOCOL_TCP == protocol || IPv4.PROTOCOL_UDP == protocol)
+				&& !fragmented && length >= 14 + headerLength + 4)
+		{ hash = hash * 31 + getInt(frame, ip + headerLength); }
+
+		return hash * 0x9E3779B9;
+	}
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return (buf[offset] & 0xff) << 24 | (buf[offset + 1] & 0xff) << 16
+				| (buf[offset + 2] & 0xff) << 8 | (buf[offset + 3] & 0xff);
+	}
+}
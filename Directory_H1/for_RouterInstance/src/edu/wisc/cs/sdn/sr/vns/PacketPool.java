@@ -0,0 +1,79 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Reusable packet objects and buffers for the router's packet processing
+ * path. Each thread decodes the packets it receives into its own Ethernet
+ * packet, whose payload objects are reused whenever the next packet carries
+ * the same protocols. Commands sent to the server are serialized into direct
+ * buffers, which are returned to a shared free list once they are written,
+ * since they are written by whichever thread flushes the write queue.
+ */
+public class PacketPool
+{
+	/** Size of the buffers into which commands are serialized; large enough
+	 * for a command carrying a full-size Ethernet frame */
+	public static final int BUFFER_SIZE = 2048;
+
+	/** Maximum number of unused buffers kept for reuse */
+	private static final int MAX_FREE_BUFFERS = 1024;
+
+	/** Ethernet packet into which each thread decodes received packets */
+	private static final ThreadLocal<Ethernet> packets =
+			new ThreadLocal<Ethernet>()
+			{
+				protected Ethernet initialValue()
+				{ return new Ethernet(); }
+			};
+
+	/** Buffers that have been written and can be reused */
+	private static final Queue<ByteBuffer> freeBuffers =
+			new ArrayBlockingQueue<ByteBuffer>(MAX_FREE_BUFFERS);
+
+	private PacketPool()
+	{ }
+
+	/**
+	 * Get the current thread's Ethernet packet, cleared so another packet can
+	 * be deserialized into it. The packet, and its payloads, must no longer
+	 * be used once the thread next calls this method.
+	 * @return an empty Ethernet packet
+	 */
+	public static Ethernet ethernet()
+	{
+		Ethernet etherPacket = packets.get();
+		etherPacket.reset();
+		return etherPacket;
+	}
+
+	/**
+	 * Get an empty buffer of BUFFER_SIZE bytes into which a command can be
+	 * serialized, reusing a released buffer if one is available.
+	 * @return an empty direct buffer
+	 */
+	public static ByteBuffer allocateBuffer()
+	{
+		ByteBuffer buf = freeBuffers.poll();
+		if (null == buf)
+		{ buf = ByteBuffer.allocateDirect(BUFFER_SIZE); }
+		return buf;
+	}
+
+	/**
+	 * Return a buffer to the free list once its contents have been written;
+	 * buffers not obtained from allocateBuffer are ignored.
+	 * @param buf the buffer
+	 */
+	public static void releaseBuffer(ByteBuffer buf)
+	{
+		if (!buf.isDirect() || buf.capacity() != BUFFER_SIZE)
+		{ return; }
+		buf.clear();
+		freeBuffers.offer(buf);
+	}
+}
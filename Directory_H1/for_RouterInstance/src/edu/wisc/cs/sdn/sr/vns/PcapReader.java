@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the Ethernet frames in a PCAP file, such as one written by the
+ * router's -l option. Files in either byte order, with microsecond or
+ * nanosecond timestamps, are accepted.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+
+	/** Length of the PCAP file header */
+	private static final int FILE_HEADER_LENGTH = 24;
+
+	private PcapReader()
+	{ }
+
+	/**
+	 * Read all frames in a PCAP file.
+	 * @param filename name of the file
+	 * @return the frames, in the order they were captured; null if the file
+	 *         cannot be read or is not a PCAP file of Ethernet frames
+	 */
+	public static List<byte[]> read(String filename)
+	{
+		ByteBuffer data;
+		try
+		{ data = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename))); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		try
+		{
+			int magic = data.getInt(0);
+			if (magic != TCPDUMP_MAGIC && magic != TCPDUMP_MAGIC_NSEC)
+			{
+				data.order(ByteOrder.LITTLE_ENDIAN);
+				magic = data.getInt(0);
+			}
+			if (magic != TCPDUMP_MAGIC && magic != TCPDUMP_MAGIC_NSEC)
+			{
+				System.err.println(filename + " is not a PCAP file");
+				return null;
+			}
+			if (data.getInt(20) != LINKTYPE_ETHERNET)
+			{
+				System.err.println(filename + " does not contain Ethernet "
+						+ "frames");
+				return null;
+			}
+
+			List<byte[]> frames = new ArrayList<byte[]>();
+			data.position(FILE_HEADER_LENGTH);
+			while (data.hasRemaining())
+			{
+				data.getInt(); // Seconds
+				data.getInt(); // Microseconds or nanoseconds
+				int capturedLength = data.getInt();
+				data.getInt(); // Original length
+				if (capturedLength < 0 || capturedLength > data.remaining())
+				{ throw new BufferUnderflowException(); }
+				byte[] frame = new byte[capturedLength];
+				data.get(frame);
+				frames.add(frame);
+			}
+			return frames;
+		}
+		catch (BufferUnderflowException e)
+		{
+			System.err.println("Truncated PCAP file " + filename);
+			return null;
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			System.err.println("Truncated PCAP file " + filename);
+			return null;
+		}
+	}
+}
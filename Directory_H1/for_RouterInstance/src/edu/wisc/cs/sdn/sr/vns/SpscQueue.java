@@ -0,0 +1,78 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+/**
+ * A bounded lock-free queue for passing items from exactly one producer
+ * thread to exactly one consumer thread. Items are stored in a ring; the
+ * producer only writes the tail index and the consumer only writes the head
+ * index, so neither side ever blocks the other.
+ * @param <T> type of the items in the queue
+ */
+public class SpscQueue<T>
+{
+	/** Slots holding queued items */
+	private final Object[] items;
+
+	/** Mask for converting an index into a slot */
+	private final int mask;
+
+	/** Index of the next item to remove; written only by the consumer */
+	private volatile long head;
+
+	/** Index of the next item to add; written only by the producer */
+	private volatile long tail;
+
+	/**
+	 * Create an empty queue.
+	 * @param capacity maximum number of items in the queue; rounded up to a
+	 *        power of two
+	 */
+	public SpscQueue(int capacity)
+	{
+		int size = 1 << (32 - Integer.numberOfLeadingZeros(
+				Math.max(1, capacity - 1)));
+		this.items = new Object[size];
+		this.mask = size - 1;
+		this.head = 0;
+		this.tail = 0;
+	}
+
+	/**
+	 * Add an item to the tail of the queue; must only be called by the
+	 * producer thread.
+	 * @param item item to add
+	 * @return true if the item was added; false if the queue is full
+	 */
+	public boolean offer(T item)
+	{
+		long tail = this.tail;
+		if (tail - this.head >= this.items.length)
+		{ return false; }
+		this.items[(int)tail & this.mask] = item;
+		this.tail = tail + 1; // publishes the item to the consumer
+		return true;
+	}
+
+	/**
+	 * Remove the item at the head of the queue; must only be called by the
+	 * consumer thread.
+	 * @return the item at the head of the queue; null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll()
+	{
+		long head = this.head;
+		if (head == this.tail)
+		{ return null; }
+		int slot = (int)head & this.mask;
+		T item = (T)this.items[slot];
+		this.items[slot] = null;
+		this.head = head + 1; // frees the slot for the producer
+		return item;
+	}
+
+	/**
+	 * @return true if the queue contains no items, otherwise false
+	 */
+	public boolean isEmpty()
+	{ return this.head == this.tail; }
+}
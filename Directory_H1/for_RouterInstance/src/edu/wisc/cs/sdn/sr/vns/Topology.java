@@ -0,0 +1,291 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import edu.wisc.cs.sdn.sr.Util;
+
+/**
+ * A network topology read from a *.topo file, as used by sr_topo.py. The
+ * first line lists the hosts, the second line lists the routers, and each
+ * following line is a link: the names of the two nodes, followed by the IP
+ * address of each node on the link. Every link is a /24 subnet.
+ * <p>
+ * As in sr_topo.py, a router's interfaces are named eth1, eth2, ... in the
+ * order its links appear in the file, and a host's address is its address
+ * on its first link.
+ */
+public class Topology
+{
+	/** Subnet mask of every link */
+	public static final int LINK_MASK = 0xFFFFFF00;
+
+	/** An interface of a node */
+	public static class Port
+	{
+		private final String node;
+		private final String name;
+		private final int ipAddress;
+		private final byte[] macAddress;
+		private Port peer;
+
+		private Port(String node, String name, int ipAddress,
+				byte[] macAddress)
+		{
+			this.node = node;
+			this.name = name;
+			this.ipAddress = ipAddress;
+			this.macAddress = macAddress;
+		}
+
+		/**
+		 * @return name of the node the interface belongs to
+		 */
+		public String getNode()
+		{ return this.node; }
+
+		/**
+		 * @return name of the interface
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @return IP address of the interface
+		 */
+		public int getIpAddress()
+		{ return this.ipAddress; }
+
+		/**
+		 * @return MAC address of the interface
+		 */
+		public byte[] getMacAddress()
+		{ return this.macAddress; }
+
+		/**
+		 * @return interface at the other end of the link
+		 */
+		public Port getPeer()
+		{ return this.peer; }
+	}
+
+	private final List<String> hosts;
+	private final List<String> routers;
+
+	/** Interfaces of each node, in the order the node's links are listed */
+	private final Map<String,List<Port>> ports;
+
+	private Topology()
+	{
+		this.hosts = new ArrayList<String>();
+		this.routers = new ArrayList<String>();
+		this.ports = new HashMap<String,List<Port>>();
+	}
+
+	/**
+	 * Read a topology file.
+	 * @param filename name of the file
+	 * @return the topology; null if the file cannot be read or is invalid
+	 */
+	public static Topology load(String filename)
+	{
+		Topology topo = new Topology();
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(filename));
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				String[] fields = line.trim().split("\\s+");
+				if (1 == lineNumber)
+				{ topo.hosts.addAll(Arrays.asList(fields)); }
+				else if (2 == lineNumber)
+				{ topo.routers.addAll(Arrays.asList(fields)); }
+				else if (line.trim().length() > 0
+						&& !topo.addLink(fields))
+				{
+					System.err.println("Invalid link on line " + lineNumber
+							+ " of topology file " + filename);
+					return null;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		finally
+		{
+			if (reader != null)
+			{ try { reader.close(); } catch (IOException f) {}; }
+		}
+
+		if (topo.routers.isEmpty())
+		{
+			System.err.println("No routers in topology file " + filename);
+			return null;
+		}
+		return topo;
+	}
+
+	private boolean addLink(String[] fields)
+	{
+		if (fields.length != 4 || !this.isNode(fields[0])
+				|| !this.isNode(fields[1]))
+		{ return false; }
+		int ipA = Util.dottedDecimalToInt(fields[2]);
+		int ipB = Util.dottedDecimalToInt(fields[3]);
+		if (0 == ipA || 0 == ipB)
+		{ return false; }
+
+		Port a = this.addPort(fields[0], ipA);
+		Port b = this.addPort(fields[1], ipB);
+		a.peer = b;
+		b.peer = a;
+		return true;
+	}
+
+	private boolean isNode(String name)
+	{ return this.hosts.contains(name) || this.routers.contains(name); }
+
+	private Port addPort(String node, int ipAddress)
+	{
+		List<Port> nodePorts = this.getPorts(node);
+		int index = nodePorts.size();
+		String name = this.routers.contains(node)
+				? "eth" + (index + 1) : node + "-eth" + index;
+
+		// Locally administered address identifying the node and interface
+		int nodeIndex = this.hosts.indexOf(node);
+		if (nodeIndex < 0)
+		{ nodeIndex = this.hosts.size() + this.routers.indexOf(node); }
+		byte[] mac = new byte[] { 0x02, 0, 0, (byte)(nodeIndex >> 8),
+				(byte)nodeIndex, (byte)(index + 1) };
+
+		Port port = new Port(node, name, ipAddress, mac);
+		nodePorts.add(port);
+		return port;
+	}
+
+	/**
+	 * @return names of the hosts
+	 */
+	public List<String> getHosts()
+	{ return this.hosts; }
+
+	/**
+	 * @return names of the routers
+	 */
+	public List<String> getRouters()
+	{ return this.routers; }
+
+	/**
+	 * @param node name of a node
+	 * @return interfaces of the node, in the order its links are listed
+	 */
+	public List<Port> getPorts(String node)
+	{
+		List<Port> nodePorts = this.ports.get(node);
+		if (null == nodePorts)
+		{
+			nodePorts = new ArrayList<Port>();
+			this.ports.put(node, nodePorts);
+		}
+		return nodePorts;
+	}
+
+	/**
+	 * @param host name of a host
+	 * @return IP address of the host; 0 if the host has no links
+	 */
+	public int getHostAddress(String host)
+	{
+		List<Port> hostPorts = this.getPorts(host);
+		return hostPorts.isEmpty() ? 0 : hostPorts.get(0).getIpAddress();
+	}
+
+	/**
+	 * Find the interfaces out which a router sends packets to each host,
+	 * along a shortest path.
+	 * @param router name of the router
+	 * @return the router's interface toward each reachable host, indexed by
+	 *         host name
+	 */
+	public Map<String,Port> getNextHops(String router)
+	{
+		// Breadth-first search, remembering the first hop of each path
+		Map<String,Port> firstHops = new HashMap<String,Port>();
+		Queue<String> queue = new ArrayDeque<String>();
+		for (Port port : this.getPorts(router))
+		{
+			String neighbor = port.getPeer().getNode();
+			if (!neighbor.equals(router) && !firstHops.containsKey(neighbor))
+			{
+				firstHops.put(neighbor, port);
+				queue.add(neighbor);
+			}
+		}
+		while (!queue.isEmpty())
+		{
+			String node = queue.remove();
+			if (this.hosts.contains(node))
+			{ continue; }
+			for (Port port : this.getPorts(node))
+			{
+				String neighbor = port.getPeer().getNode();
+				if (!neighbor.equals(router)
+						&& !firstHops.containsKey(neighbor))
+				{
+					firstHops.put(neighbor, firstHops.get(node));
+					queue.add(neighbor);
+				}
+			}
+		}
+
+		Map<String,Port> nextHops = new HashMap<String,Port>();
+		for (String host : this.hosts)
+		{
+			if (firstHops.containsKey(host) && this.getHostAddress(host) != 0)
+			{ nextHops.put(host, firstHops.get(host)); }
+		}
+		return nextHops;
+	}
+
+	/**
+	 * Generate a route table for a router, in the format written by
+	 * sr_topo.py: a /32 route to each host, through the next router on a
+	 * shortest path unless the host is directly connected.
+	 * @param router name of the router
+	 * @return contents of the route table file
+	 */
+	public String getRouteTable(String router)
+	{
+		StringBuilder rtable = new StringBuilder();
+		Map<String,Port> nextHops = this.getNextHops(router);
+		for (String host : this.hosts)
+		{
+			Port port = nextHops.get(host);
+			if (null == port)
+			{ continue; }
+			int hostIp = this.getHostAddress(host);
+			int gwIp = port.getPeer().getNode().equals(host)
+					? 0 : port.getPeer().getIpAddress();
+			rtable.append(String.format("%s %s 255.255.255.255 %s\n",
+					Util.intToDottedDecimal(hostIp),
+					Util.intToDottedDecimal(gwIp), port.getName()));
+		}
+		return rtable.toString();
+	}
+}
@@ -5,14 +5,19 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
@@ -20,14 +25,56 @@ import net.floodlightcontroller.util.MACAddress;
 
 import edu.wisc.cs.sdn.sr.Router;
 import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.RouteCache;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Size of the buffer into which commands are read from the server */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	/** Maximum length of a command accepted from the server; any command 
+	 * that fits in the read buffer, such as a large route table */
+	private static final int MAX_COMMAND_LEN = READ_BUFFER_SIZE;
+	
+	/** Maximum number of commands gathered into a single write */
+	private static final int MAX_WRITE_BATCH = 64;
+	
+	private SocketChannel channel;
 	private Router router;
 	
+	/** Selectors for waiting until the channel is readable or writable */
+	private Selector readSelector;
+	private Selector writeSelector;
+	
+	/** Buffer into which commands are read from the server; unprocessed data
+	 * starts at readStart and ends at the buffer's position */
+	private ByteBuffer readBuffer;
+	private int readStart;
+	
+	/** Thread that reads commands from the server */
+	private Thread readerThread;
+	
+	/** Commands waiting to be written to the server */
+	private Queue<ByteBuffer> writeQueue;
+	private AtomicInteger writeQueueSize;
+	
+	/** Commands being written to the server; guarded by itself */
+	private ByteBuffer[] writeBatch;
+	
+	/** Threads processing received packets; null if packets are processed 
+	 * by the reader thread */
+	private PacketPipeline pipeline;
+	
 	public VNSComm(Router router)
-	{ this.router = router; }
+	{
+		this.router = router;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.readStart = 0;
+		this.writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.writeQueueSize = new AtomicInteger();
+		this.writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+		this.pipeline = null;
+	}
 	
 	public boolean connectToServer(short port, String server)
 	{
@@ -41,14 +88,23 @@ public class VNSComm
 			return false;
 		}
 		
-		// Create socket and attempt to connect to the server
+		// Create channel and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			this.channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			this.channel.socket().setTcpNoDelay(true);
+			this.channel.configureBlocking(false);
+			this.readSelector = Selector.open();
+			this.channel.register(this.readSelector, SelectionKey.OP_READ);
+			this.writeSelector = Selector.open();
+			this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
+		this.readerThread = Thread.currentThread();
 		
 		// Wait for authentication to be completed (server sends the first message)
 		if (!this.readFromServerExpect(Command.VNS_AUTH_REQUEST)
@@ -78,17 +134,8 @@ public class VNSComm
 			buf = cmdOpen.serialize();
 		}
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
+		if (!this.writeToServer(ByteBuffer.wrap(buf)))
+		{ return false; }
 		
 		if (this.router.getTemplate() != null)
 		{
@@ -201,19 +248,7 @@ public class VNSComm
 	    { cmdAuthReply.key[i] = sha1.getInt(); }
 	    
 	    byte[] buf = cmdAuthReply.serialize();
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true;
+		return this.writeToServer(ByteBuffer.wrap(buf));
 	}
 	
 	public boolean handleAuthStatus(CommandAuthStatus cmdAuthStatus)
@@ -234,72 +269,113 @@ public class VNSComm
 	public boolean readFromServer()
 	{ return this.readFromServerExpect(0); }
 	
-	public boolean readFromServerExpect(int expectedCmd)
+	/**
+	 * Process received packets on worker threads, and write commands to the
+	 * server on a dedicated writer thread, instead of on the reader thread.
+	 * @param workerCount number of worker threads
+	 */
+	public void startPipeline(int workerCount)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		this.pipeline = new PacketPipeline(this, workerCount);
+		this.pipeline.start();
+	}
+	
+	/**
+	 * Wait for the worker threads to process the packets already received 
+	 * and for the resulting commands to be written to the server; does 
+	 * nothing if packets are processed by the reader thread.
+	 */
+	public void stopPipeline()
+	{
+		if (this.pipeline != null)
+		{ this.pipeline.stop(); }
+	}
+	
+	/**
+	 * Close the connection to the server.
+	 */
+	public void close()
+	{
+		try { this.channel.close(); } catch (IOException e) { }
+	}
+	
+	/**
+	 * Get the next command from the server, reading from the server if no
+	 * complete command is buffered. Several commands are decoded from each
+	 * read; queued commands are written to the server before waiting for
+	 * more data.
+	 * @return a buffer containing exactly one command; null if the 
+	 *         connection was closed or a read error occurred
+	 */
+	private ByteBuffer readCommand()
+	{
+		while (true)
 		{
-			try 
+			// Check whether a complete command is buffered
+			int available = this.readBuffer.position() - this.readStart;
+			if (available >= 4)
 			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+				int len = this.readBuffer.getInt(this.readStart);
+				if (len > MAX_COMMAND_LEN)
+				{
+					System.err.println(String.format(
+							"Error: command length too large %d", len));
+					this.close();
+					return null;
+				}
+				if (len < 8)
+				{
+					System.err.println(String.format(
+							"Error: invalid command length %d", len));
+					this.close();
+					return null;
+				}
+				if (available >= len)
+				{
+					ByteBuffer buf = this.readBuffer.duplicate();
+					buf.limit(this.readStart + len);
+					buf.position(this.readStart);
+					this.readStart += len;
+					return buf.slice();
+				}
+			}
+			
+			// Queued commands may refer to the read buffer, so write them 
+			// before the buffer is reused; the pipeline copies packets, and its
+			// writer thread writes the commands produced from them
+			if (null == this.pipeline && !this.flush())
+			{ return null; }
+			if (this.readStart > 0)
 			{
-				e.printStackTrace();
-				return false;
+				this.readBuffer.limit(this.readBuffer.position());
+				this.readBuffer.position(this.readStart);
+				this.readBuffer.compact();
+				this.readStart = 0;
 			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
-		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
-		}
-		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
+			
+			// Wait for more data from the server
+			try
 			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+				this.readSelector.select();
+				this.readSelector.selectedKeys().clear();
+				if (this.channel.read(this.readBuffer) < 0)
+				{ throw new IOException("Connection closed by server"); }
+			}
+			catch (IOException e)
 			{
 				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
+				this.close();
+				return null;
 			}
 		}
+	}
+	
+	public boolean readFromServerExpect(int expectedCmd)
+	{
+		ByteBuffer buf = this.readCommand();
+		if (null == buf)
+		{ return false; }
+		buf.position(4);
 		
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
@@ -318,21 +394,10 @@ public class VNSComm
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Check if it is an ARP to another router if so drop
-			if (this.arpRequestNotForUs(cmdPkt.etherPacket, 
-					cmdPkt.mInterfaceName))
-			{ break; }
-			
-			// Log packet
-            if (this.router.getLogFile() != null)
-            { this.router.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to router, student's code should take over here
-			this.router.handlePacket(cmdPkt.etherPacket, 
-					this.router.getInterface(cmdPkt.mInterfaceName));
+			if (this.pipeline != null)
+			{ this.pipeline.dispatch(buf); }
+			else
+			{ this.handlePacketCommand(buf); }
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -389,14 +454,200 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Process a VNS_PACKET command received from the server.
+	 * @param buf buffer containing exactly one serialized command, starting
+	 *        at the buffer's position
+	 */
+	protected void handlePacketCommand(ByteBuffer buf)
+	{
+		byte[] data = buf.array();
+		int offset = buf.arrayOffset() + buf.position();
+		int len = buf.remaining();
+		Iface inIface = this.findInterface(data, offset);
+		if (null == inIface)
+		{
+			System.err.println("** Error, packet received on an interface "
+					+ "that does not exist");
+			return;
+		}
+		
+		// Forward the packet without decoding it, if possible
+		if (this.forwardRawPacket(data, offset, len, inIface))
+		{ return; }
+		
+		// Decode the packet into this thread's reusable packet objects
+		Ethernet etherPacket = PacketPool.ethernet();
+		etherPacket.deserialize(data, offset + CommandPacket.FRAME_OFFSET, 
+				len - CommandPacket.FRAME_OFFSET);
+		
+		// Check if it is an ARP to another router if so drop, after learning
+		// the sender's address if snooping
+		if (this.arpRequestNotForUs(etherPacket, inIface))
+		{
+			this.router.snoopArpPacket((ARP)etherPacket.getPayload(), inIface);
+			return; 
+		}
+		
+		// Log packet
+		if (this.router.getLogFile() != null)
+		{ 
+			this.router.getLogFile().dump(data, 
+					offset + CommandPacket.FRAME_OFFSET, 
+					len - CommandPacket.FRAME_OFFSET);
+		}
+		
+		// Pass to router, student's code should take over here
+		this.router.handlePacket(etherPacket, inIface);
+	}
+	
+	/**
+	 * Find the interface named in a serialized VNS_PACKET command, without
+	 * decoding the name.
+	 * @param buf buffer containing the serialized command
+	 * @param offset offset of the command in the buffer
+	 * @return the interface; null if the router has no such interface
+	 */
+	private Iface findInterface(byte[] buf, int offset)
+	{
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			if (CommandPacket.matchesInterfaceName(buf, offset, 
+					iface.getName()))
+			{ return iface; }
+		}
+		return null;
+	}
+	
+	/**
+	 * Forward a received VNS_PACKET command without decoding its Ethernet 
+	 * frame: the frame and interface name are rewritten in the command buffer
+	 * and the same buffer is sent back to the server.
+	 * @param buf buffer containing the serialized command
+	 * @param offset offset of the command in the buffer
+	 * @param len length of the command
+	 * @param inIface interface on which the packet was received
+	 * @return true if the packet was forwarded; false if the packet must be
+	 *         decoded and passed to the router
+	 */
+	private boolean forwardRawPacket(byte[] buf, int offset, int len, 
+			Iface inIface)
+	{
+		int frameOffset = offset + CommandPacket.FRAME_OFFSET;
+		int frameLen = len - CommandPacket.FRAME_OFFSET;
+		RouteCache.Entry decision = this.router.routeRawPacket(buf, 
+				frameOffset, frameLen, inIface);
+		if (null == decision)
+		{ return false; }
+		
+		// Log received packet
+		if (this.router.getLogFile() != null)
+		{ this.router.getLogFile().dump(buf, frameOffset, frameLen); }
+		
+		this.router.rewriteRawPacket(buf, frameOffset, decision);
+		CommandPacket.putInterfaceName(buf, offset, 
+				decision.getIface().getName());
+		
+		// Log sent packet
+		if (this.router.getLogFile() != null)
+		{ this.router.getLogFile().dump(buf, frameOffset, frameLen); }
+		
+		this.writeToServer(ByteBuffer.wrap(buf, offset, len));
+		return true;
+	}
+	
+	/**
+	 * Queue a serialized command to be written to the server. Commands queued
+	 * by the reader thread are gathered into a single write, which happens 
+	 * before the reader next waits for data or once enough commands are 
+	 * queued; commands queued by other threads are written immediately. When
+	 * packets are processed by a pipeline, commands are written by its writer
+	 * thread, unless a full queue of commands is already waiting.
+	 * @param buf buffer containing the serialized command between its 
+	 *        position and limit
+	 * @return true if the command was queued successfully, otherwise false
+	 */
+	private boolean writeToServer(ByteBuffer buf)
+	{
+		this.writeQueue.add(buf);
+		int queued = this.writeQueueSize.incrementAndGet();
+		if (this.pipeline != null && queued < PacketPipeline.QUEUE_CAPACITY)
+		{
+			this.pipeline.wakeWriter();
+			return true;
+		}
+		if (Thread.currentThread() != this.readerThread 
+				|| queued >= MAX_WRITE_BATCH)
+		{ return this.flush(); }
+		return true;
+	}
+	
+	/**
+	 * @return true if commands are waiting to be written to the server
+	 */
+	protected boolean hasQueuedWrites()
+	{ return this.writeQueueSize.get() > 0; }
+	
+	/**
+	 * Write all queued commands to the server, gathering several commands 
+	 * into each write.
+	 * @return true if the commands were written successfully, otherwise false
+	 */
+	public boolean flush()
+	{
+		synchronized(this.writeBatch)
+		{
+			while (!this.writeQueue.isEmpty())
+			{
+				int count = 0;
+				long remaining = 0;
+				ByteBuffer buf;
+				while (count < MAX_WRITE_BATCH 
+						&& (buf = this.writeQueue.poll()) != null)
+				{
+					this.writeBatch[count++] = buf;
+					remaining += buf.remaining();
+				}
+				this.writeQueueSize.addAndGet(-count);
+				
+				try
+				{
+					while (remaining > 0)
+					{
+						long written = this.channel.write(this.writeBatch, 0, 
+								count);
+						if (0 == written)
+						{
+							// Wait until the channel can accept more data
+							this.writeSelector.select();
+							this.writeSelector.selectedKeys().clear();
+						}
+						remaining -= written;
+					}
+				}
+				catch (IOException e)
+				{
+					System.err.println("Error writing packet");
+					return false;
+				}
+				finally
+				{
+					for (int i = 0; i < count; i++)
+					{ PacketPool.releaseBuffer(this.writeBatch[i]); }
+					Arrays.fill(this.writeBatch, 0, count, null); 
+				}
+			}
+		}
+		return true;
+	}
+	
 	// sr_arp_req_not_for_us
-	private boolean arpRequestNotForUs(Ethernet etherPacket, String ifaceName)
+	private boolean arpRequestNotForUs(Ethernet etherPacket, Iface iface)
 	{
 		// Check if it's an ARP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_ARP)
 		{ return false; }
 		
-		Iface iface = this.router.getInterface(ifaceName);
 		ARP arpPacket = (ARP)etherPacket.getPayload();
 		int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt();
 		
@@ -419,7 +670,8 @@ public class VNSComm
 					+ ", does not exist");
 			return false;
 		}
-		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
+		if (iface.getMacAddress().toLong() 
+				!= etherPacket.getSourceMACAddressAsLong())
 		{
 			System.err.println("** Error, source address does not match interface"); 
 			return false;
@@ -430,33 +682,58 @@ public class VNSComm
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
 		if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
 			return false;
 		}
 		
+		// Serialize the whole command once, directly into a reusable buffer
+		// or, if the frame is too large to fit, a buffer of its own
+		CommandPacket cmdPacket = new CommandPacket();
+		cmdPacket.mInterfaceName = ifaceName;
+		cmdPacket.etherPacket = etherPacket;
+		cmdPacket.mLen = cmdPacket.getSerializedLength();
+		ByteBuffer buf = (cmdPacket.mLen <= PacketPool.BUFFER_SIZE)
+				? PacketPool.allocateBuffer() : ByteBuffer.allocate(cmdPacket.mLen);
+		cmdPacket.serializeInto(buf);
+		buf.flip();
+		
 		// Log packet
         if (this.router.getLogFile() != null)
-        { this.router.getLogFile().dump(etherPacket); }
+        { 
+        	ByteBuffer frame = buf.duplicate();
+        	frame.position(CommandPacket.FRAME_OFFSET);
+        	this.router.getLogFile().dump(frame); 
+        }
 		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		return this.writeToServer(buf);
+	}
+	
+	/**
+	 * Send an already serialized Ethernet frame out an interface.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface out which the frame is sent
+	 * @return true if the frame was queued successfully, otherwise false
+	 */
+	public boolean sendRawPacket(byte[] frame, int offset, int length, 
+			String ifaceName)
+	{
+		if (null == this.router.getInterface(ifaceName))
 		{
-			System.err.println("Error writing packet");
+			System.err.println("** Error, interface " + ifaceName 
+					+ ", does not exist");
 			return false;
 		}
-		return true;
+		
+		byte[] buf = CommandPacket.serialize(ifaceName, frame, offset, length);
+		
+		// Log packet
+		if (this.router.getLogFile() != null)
+		{ this.router.getLogFile().dump(frame, offset, length); }
+		
+		return this.writeToServer(ByteBuffer.wrap(buf));
 	}
 }
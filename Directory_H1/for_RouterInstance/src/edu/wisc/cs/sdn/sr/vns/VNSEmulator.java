@@ -0,0 +1,892 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for the VNS server, for benchmarking a router locally without
+ * POX or Mininet. The emulator loads a *.topo file, writes the route table
+ * sr_topo.py would write for one of its routers, and waits for that router
+ * to connect. It then plays the hosts and neighboring routers attached to
+ * the router: it answers the router's ARP requests, sends the router
+ * synthetic UDP traffic between the hosts or frames replayed from a PCAP
+ * file, and reports the forwarding rate, latency percentiles, and drops.
+ * <p>
+ * Packets are matched to the copies the router forwards by their IP
+ * identification field, which the emulator sets to a sequence number modulo
+ * the window size. A packet is only sent once the previous packet with the
+ * same identification has come back, or has been given up as lost, so at
+ * most a window of packets is in flight; when sending as fast as possible,
+ * the window bounds the queueing delay included in the latencies.
+ * <p>
+ * Usage:
+ * <pre>
+ * java edu.wisc.cs.sdn.sr.vns.VNSEmulator -t pair.topo -v r1 -n 1000000
+ * java edu.wisc.cs.sdn.sr.Main -v r1 -r rtable.r1
+ * </pre>
+ */
+public class VNSEmulator
+{
+	private static final short DEFAULT_PORT = 8001;
+	private static final long DEFAULT_COUNT = 100000;
+	private static final int DEFAULT_FRAME_SIZE = 64;
+	private static final int DEFAULT_FLOWS = 64;
+	private static final int DEFAULT_WINDOW = 256;
+
+	/** Time (in milliseconds) after the first packets of each flow are sent
+	 * for the router to resolve next hops, before measurement starts */
+	private static final long WARMUP_TIME = 1000;
+
+	/** Maximum time (in milliseconds) to wait for the router to forward the
+	 * packets already sent once sending stops */
+	private static final long DRAIN_TIME = 1000;
+
+	/** Number of packets written to the router at once */
+	private static final int SEND_BATCH = 16;
+
+	/** Largest latency (in microseconds) that is recorded exactly; larger
+	 * latencies are recorded as this value */
+	private static final int MAX_LATENCY = 100000;
+
+	/** Number of distinct IP identification values */
+	private static final int ID_SPACE = 1 << 16;
+
+	/** Time (in nanoseconds) after which a packet that has not come back
+	 * is given up as lost, so its identification can be reused */
+	private static final long LOSS_TIMEOUT = 100 * 1000000L;
+
+	/** Send time recorded for packets sent before measurement starts */
+	private static final long WARMUP_SEND_TIME = -1;
+
+	private static final int ETHER_HEADER_LENGTH = 14;
+	private static final int IP_HEADER_LENGTH = 20;
+	private static final int UDP_HEADER_LENGTH = 8;
+	private static final short ETHER_TYPE_IPV4 = 0x0800;
+	private static final short ETHER_TYPE_ARP = 0x0806;
+	private static final byte PROTOCOL_ICMP = 1;
+	private static final byte PROTOCOL_UDP = 17;
+
+	/** Offsets of fields in a serialized VNS_PACKET command */
+	private static final int IP_OFFSET =
+			CommandPacket.FRAME_OFFSET + ETHER_HEADER_LENGTH;
+	private static final int IP_ID_OFFSET = IP_OFFSET + 4;
+	private static final int IP_CHECKSUM_OFFSET = IP_OFFSET + 10;
+
+	/** Topology the router is part of */
+	private final Topology topo;
+
+	/** Name of the router */
+	private final String router;
+
+	/** Interfaces of the router; the emulator plays the peer of each */
+	private final List<Topology.Port> ports;
+
+	/** Serialized VNS_PACKET commands sent to the router, in turn; the IP
+	 * identification field is set as each is sent */
+	private final List<byte[]> packets;
+
+	/** Maximum number of packets in flight */
+	private final int window;
+
+	/** Connection to the router */
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	/** Thread answering ARP requests and collecting forwarded packets */
+	private Thread receiverThread;
+
+	/** Guards writes to the router */
+	private final Object writeLock;
+
+	/** Time (from System.nanoTime) each packet in flight was sent, indexed
+	 * by IP identification; 0 if no packet with the identification is in
+	 * flight, and WARMUP_SEND_TIME if the packet is not measured */
+	private final AtomicLongArray sendTimes;
+
+	/** Number of packets buffered but not yet written */
+	private int pendingCount;
+
+	/** Whether packets being sent are measured */
+	private boolean measuring;
+
+	/** Counts of packets sent and received; receiver counts are only
+	 * modified by the receiver thread, and are read once it stops */
+	private long sent;
+	private long timedOut;
+	private volatile long forwarded;
+	private long unmatched;
+	private long misdelivered;
+	private long arpRequests;
+	private long icmpMessages;
+	private long otherPackets;
+
+	/** Times (from System.nanoTime) the first measured packet was sent and
+	 * the last measured packet was received */
+	private long firstSendTime;
+	private volatile long lastReceiveTime;
+
+	/** Number of measured packets received with each latency, in
+	 * microseconds; only modified by the receiver thread */
+	private final long[] latencies;
+	private long maxLatency;
+
+	private VNSEmulator(Topology topo, String router, List<byte[]> packets,
+			int window)
+	{
+		this.topo = topo;
+		this.router = router;
+		this.ports = topo.getPorts(router);
+		this.packets = packets;
+		this.window = Math.max(2 * SEND_BATCH, Math.min(window, ID_SPACE));
+		this.writeLock = new Object();
+		this.sendTimes = new AtomicLongArray(this.window);
+		this.pendingCount = 0;
+		this.measuring = false;
+		this.latencies = new long[MAX_LATENCY + 1];
+		this.maxLatency = 0;
+	}
+
+	public static void main(String[] args)
+	{
+		String topoFile = null;
+		String router = null;
+		String rtableFile = null;
+		String pcapFile = null;
+		short port = DEFAULT_PORT;
+		long count = DEFAULT_COUNT;
+		long duration = 0;
+		long rate = 0;
+		int frameSize = DEFAULT_FRAME_SIZE;
+		int flows = DEFAULT_FLOWS;
+		int window = DEFAULT_WINDOW;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				System.exit(0);
+			}
+			else if (i + 1 >= args.length)
+			{
+				usage();
+				System.exit(1);
+			}
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-v"))
+			{ router = args[++i]; }
+			else if (arg.equals("-o"))
+			{ rtableFile = args[++i]; }
+			else if (arg.equals("-P"))
+			{ pcapFile = args[++i]; }
+			else if (arg.equals("-p"))
+			{ port = Short.parseShort(args[++i]); }
+			else if (arg.equals("-n"))
+			{ count = Long.parseLong(args[++i]); }
+			else if (arg.equals("-d"))
+			{ duration = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-R"))
+			{ rate = Long.parseLong(args[++i]); }
+			else if (arg.equals("-s"))
+			{ frameSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-f"))
+			{ flows = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ window = Integer.parseInt(args[++i]); }
+			else
+			{
+				usage();
+				System.exit(1);
+			}
+		}
+		if (null == topoFile)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		// Load the topology, and write the router's route table
+		Topology topo = Topology.load(topoFile);
+		if (null == topo)
+		{ System.exit(1); }
+		if (null == router)
+		{ router = topo.getRouters().get(0); }
+		if (!topo.getRouters().contains(router))
+		{
+			System.err.println("No router " + router + " in " + topoFile);
+			System.exit(1);
+		}
+		if (null == rtableFile)
+		{ rtableFile = "rtable." + router; }
+		if (!writeRouteTable(topo.getRouteTable(router), rtableFile))
+		{ System.exit(1); }
+		System.out.println("Wrote routing table " + rtableFile);
+
+		// Prepare the traffic
+		List<byte[]> packets;
+		if (pcapFile != null)
+		{ packets = replayPackets(topo, router, pcapFile); }
+		else
+		{ packets = syntheticPackets(topo, router, frameSize, flows); }
+		if (null == packets)
+		{ System.exit(1); }
+
+		VNSEmulator emulator = new VNSEmulator(topo, router, packets,
+				window);
+		if (!emulator.accept(port))
+		{ System.exit(1); }
+		emulator.run(count, duration, rate);
+		emulator.close();
+		emulator.report();
+		System.exit(0);
+	}
+
+	static void usage()
+	{
+		System.out.println("VNS Emulator");
+		System.out.println("VNSEmulator -t topo_file [-h] [-v router] [-p port]");
+		System.out.println("     [-o routing_table_output]");
+		System.out.println("     [-n packets | -d seconds] [-R packets_per_second]");
+		System.out.println("     [-s frame_size] [-f flows] [-P pcap_file (replay)]");
+		System.out.println("     [-w max_packets_in_flight]");
+		System.out.println(String.format(
+				"  defaults port=%d packets=%d rate=unlimited frame_size=%d "
+				+ "flows=%d window=%d", DEFAULT_PORT, DEFAULT_COUNT, 
+				DEFAULT_FRAME_SIZE, DEFAULT_FLOWS, DEFAULT_WINDOW));
+	}
+
+	private static boolean writeRouteTable(String rtable, String filename)
+	{
+		try
+		{
+			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+			writer.write(rtable);
+			writer.close();
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Build UDP packets between every pair of hosts whose traffic crosses
+	 * the router, entering and leaving through different interfaces.
+	 * @return serialized VNS_PACKET commands, one per flow; null if no pair
+	 *         of hosts exchanges traffic through the router
+	 */
+	private static List<byte[]> syntheticPackets(Topology topo, String router,
+			int frameSize, int flows)
+	{
+		Map<String,Topology.Port> nextHops = topo.getNextHops(router);
+		List<String[]> pairs = new ArrayList<String[]>();
+		for (String src : topo.getHosts())
+		{
+			for (String dst : topo.getHosts())
+			{
+				if (nextHops.containsKey(src) && nextHops.containsKey(dst)
+						&& nextHops.get(src) != nextHops.get(dst))
+				{ pairs.add(new String[] { src, dst }); }
+			}
+		}
+		if (pairs.isEmpty())
+		{
+			System.err.println("No traffic between hosts crosses router "
+					+ router);
+			return null;
+		}
+
+		int minSize = ETHER_HEADER_LENGTH + IP_HEADER_LENGTH
+				+ UDP_HEADER_LENGTH;
+		frameSize = Math.max(frameSize, minSize);
+		List<byte[]> packets = new ArrayList<byte[]>();
+		for (int i = 0; i < Math.max(flows, pairs.size()); i++)
+		{
+			String[] pair = pairs.get(i % pairs.size());
+			Topology.Port inPort = nextHops.get(pair[0]);
+
+			ByteBuffer frame = ByteBuffer.allocate(frameSize);
+			frame.put(inPort.getMacAddress());
+			frame.put(inPort.getPeer().getMacAddress());
+			frame.putShort(ETHER_TYPE_IPV4);
+			frame.put((byte)0x45);
+			frame.put((byte)0);
+			frame.putShort((short)(frameSize - ETHER_HEADER_LENGTH));
+			frame.putInt(0); // Identification, flags, fragment offset
+			frame.put((byte)64); // TTL
+			frame.put(PROTOCOL_UDP);
+			frame.putShort((short)0); // Checksum
+			frame.putInt(topo.getHostAddress(pair[0]));
+			frame.putInt(topo.getHostAddress(pair[1]));
+			frame.putShort((short)(1024 + i));
+			frame.putShort((short)5001);
+			frame.putShort((short)(frameSize - minSize + UDP_HEADER_LENGTH));
+			frame.putShort((short)0); // No checksum
+
+			packets.add(CommandPacket.serialize(inPort.getName(),
+					frame.array(), 0, frameSize));
+		}
+		return packets;
+	}
+
+	/**
+	 * Build packets from the IPv4 frames in a PCAP file. Each frame enters
+	 * the router through the interface whose subnet contains the source
+	 * address, or through which the source host is reached, and is
+	 * addressed to that interface.
+	 * @return serialized VNS_PACKET commands, one per IPv4 frame; null if
+	 *         the file cannot be read or contains no IPv4 frames
+	 */
+	private static List<byte[]> replayPackets(Topology topo, String router,
+			String pcapFile)
+	{
+		List<byte[]> frames = PcapReader.read(pcapFile);
+		if (null == frames)
+		{ return null; }
+
+		Map<String,Topology.Port> nextHops = topo.getNextHops(router);
+		List<Topology.Port> ports = topo.getPorts(router);
+		List<byte[]> packets = new ArrayList<byte[]>();
+		int skipped = 0;
+		for (byte[] frame : frames)
+		{
+			ByteBuffer bb = ByteBuffer.wrap(frame);
+			if (frame.length < ETHER_HEADER_LENGTH + IP_HEADER_LENGTH
+					|| bb.getShort(12) != ETHER_TYPE_IPV4
+					|| frame.length < ETHER_HEADER_LENGTH
+							+ (frame[ETHER_HEADER_LENGTH] & 0xf) * 4)
+			{
+				skipped++;
+				continue;
+			}
+			int srcIp = bb.getInt(ETHER_HEADER_LENGTH + 12);
+
+			Topology.Port inPort = null;
+			for (Topology.Port port : ports)
+			{
+				if ((port.getIpAddress() & Topology.LINK_MASK)
+						== (srcIp & Topology.LINK_MASK))
+				{ inPort = port; }
+			}
+			for (String host : topo.getHosts())
+			{
+				if (null == inPort && topo.getHostAddress(host) == srcIp)
+				{ inPort = nextHops.get(host); }
+			}
+			if (null == inPort)
+			{ inPort = ports.get(0); }
+
+			byte[] packet = CommandPacket.serialize(inPort.getName(), frame,
+					0, frame.length);
+			System.arraycopy(inPort.getMacAddress(), 0, packet,
+					CommandPacket.FRAME_OFFSET, 6);
+			System.arraycopy(inPort.getPeer().getMacAddress(), 0, packet,
+					CommandPacket.FRAME_OFFSET + 6, 6);
+			packets.add(packet);
+		}
+		if (skipped > 0)
+		{ System.out.println("Skipping " + skipped + " non-IPv4 frames"); }
+		if (packets.isEmpty())
+		{
+			System.err.println("No IPv4 frames in " + pcapFile);
+			return null;
+		}
+		return packets;
+	}
+
+	/**
+	 * Wait for the router to connect, and set up a session: authenticate
+	 * the router, and send it the router's interfaces and, if it asks for
+	 * a template, its route table.
+	 * @param port TCP port on which to listen
+	 * @return true if the session was set up, otherwise false
+	 */
+	private boolean accept(short port)
+	{
+		try
+		{
+			ServerSocket server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress("127.0.0.1", port));
+			System.out.println(String.format(
+					"Waiting for router %s on port %d", this.router, port));
+			this.socket = server.accept();
+			server.close();
+			this.socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(
+					this.socket.getInputStream(), 64 * 1024));
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					this.socket.getOutputStream(), 64 * 1024));
+
+			// Authenticate; like the POX server, any reply is accepted
+			byte[] salt = new byte[20];
+			new Random().nextBytes(salt);
+			this.out.writeInt(8 + salt.length);
+			this.out.writeInt(Command.VNS_AUTH_REQUEST);
+			this.out.write(salt);
+			this.out.flush();
+			if (!this.expect(Command.VNS_AUTH_REPLY))
+			{ return false; }
+			byte[] msg = ("authenticated as " + this.router).getBytes();
+			this.out.writeInt(8 + 1 + msg.length);
+			this.out.writeInt(Command.VNS_AUTH_STATUS);
+			this.out.writeByte(1);
+			this.out.write(msg);
+			this.out.flush();
+
+			// Open the topology
+			int type = this.readCommand();
+			if (Command.VNS_OPEN_TEMPLATE == type)
+			{ this.sendRouteTable(); }
+			else if (type != Command.VNS_OPEN)
+			{
+				System.err.println("Expected open command but got " + type);
+				return false;
+			}
+			this.sendHwInfo();
+			System.out.println("Router " + this.router + " connected");
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+
+		// Answer the router's ARP requests and collect forwarded packets
+		this.receiverThread = new Thread(new Runnable()
+			{
+				public void run()
+				{ receive(); }
+			}, "vns-emulator-receiver");
+		this.receiverThread.setDaemon(true);
+		this.receiverThread.start();
+		return true;
+	}
+
+	/**
+	 * Read a command from the router, ignoring its contents.
+	 * @return type of the command
+	 */
+	private int readCommand() throws IOException
+	{
+		int len = this.in.readInt();
+		int type = this.in.readInt();
+		this.in.readFully(new byte[Math.max(0, len - 8)]);
+		return type;
+	}
+
+	private boolean expect(int expectedType) throws IOException
+	{
+		int type = this.readCommand();
+		if (type != expectedType)
+		{
+			System.err.println(String.format(
+					"Expected command %d but got %d", expectedType, type));
+			return false;
+		}
+		return true;
+	}
+
+	private void sendRouteTable() throws IOException
+	{
+		byte[] rtable = this.topo.getRouteTable(this.router).getBytes();
+		byte[] hostId = new byte[Command.ID_SIZE];
+		System.arraycopy(this.router.getBytes(), 0, hostId, 0,
+				Math.min(this.router.length(), hostId.length));
+		this.out.writeInt(8 + hostId.length + rtable.length);
+		this.out.writeInt(Command.VNS_RTABLE);
+		this.out.write(hostId);
+		this.out.write(rtable);
+		this.out.flush();
+	}
+
+	private void sendHwInfo() throws IOException
+	{
+		int entryLength = 4 + Command.ID_SIZE;
+		ByteBuffer body = ByteBuffer.allocate(
+				this.ports.size() * 4 * entryLength);
+		for (Topology.Port port : this.ports)
+		{
+			putHwEntry(body, CommandHwEntry.HW_INTERFACE,
+					port.getName().getBytes());
+			putHwEntry(body, CommandHwEntry.HW_ETHER, port.getMacAddress());
+			putHwEntry(body, CommandHwEntry.HW_ETH_IP,
+					ByteBuffer.allocate(4).putInt(port.getIpAddress()).array());
+			putHwEntry(body, CommandHwEntry.HW_MASK,
+					ByteBuffer.allocate(4).putInt(Topology.LINK_MASK).array());
+		}
+		this.out.writeInt(8 + body.capacity());
+		this.out.writeInt(Command.VNS_HW_INFO);
+		this.out.write(body.array());
+		this.out.flush();
+	}
+
+	private static void putHwEntry(ByteBuffer buf, int key, byte[] value)
+	{
+		buf.putInt(key);
+		byte[] padded = new byte[Command.ID_SIZE];
+		System.arraycopy(value, 0, padded, 0, value.length);
+		buf.put(padded);
+	}
+
+	/**
+	 * Send packets to the router: first one packet for each flow, up to a
+	 * window, so the router resolves its next hops, and then the measured
+	 * packets.
+	 * @param count number of measured packets; ignored if duration is set
+	 * @param duration time (in milliseconds) to send measured packets; 0 to
+	 *        send count packets
+	 * @param rate packets sent per second; 0 to send as fast as the router
+	 *        accepts them
+	 */
+	private void run(long count, long duration, long rate)
+	{
+		try
+		{
+			for (int i = 0; i < Math.min(this.packets.size(), this.window); i++)
+			{ this.sendPacket(this.packets.get(i), i); }
+			this.flush();
+			Thread.sleep(WARMUP_TIME);
+			for (int i = 0; i < this.window; i++)
+			{ this.sendTimes.set(i, 0); }
+
+			this.measuring = true;
+			long start = System.nanoTime();
+			this.firstSendTime = start;
+			long end = start + duration * 1000000;
+			for (long i = 0; ; i++)
+			{
+				if (duration > 0 ? System.nanoTime() >= end : i >= count)
+				{ break; }
+				if (rate > 0)
+				{
+					// Wait until the packet is due, writing the packets
+					// already buffered
+					long due = start + (long)(i * (1e9 / rate));
+					if (System.nanoTime() < due)
+					{
+						this.flush();
+						while (System.nanoTime() < due)
+						{ LockSupport.parkNanos(due - System.nanoTime()); }
+					}
+				}
+				this.sendPacket(this.packets.get(
+						(int)(i % this.packets.size())), i);
+			}
+			this.flush();
+
+			// Wait for packets in flight
+			long drainEnd = System.currentTimeMillis() + DRAIN_TIME;
+			while (this.forwarded < this.sent
+					&& System.currentTimeMillis() < drainEnd)
+			{ Thread.sleep(10); }
+		}
+		catch (IOException e)
+		{ System.err.println(e.toString()); }
+		catch (InterruptedException e)
+		{ }
+	}
+
+	/**
+	 * Buffer a packet for the router, writing the buffered packets once a
+	 * batch is full.
+	 * @param packet serialized VNS_PACKET command
+	 * @param sequence number of the packet; its identification is set to
+	 *        the number modulo the window
+	 */
+	private void sendPacket(byte[] packet, long sequence) throws IOException
+	{
+		// Wait for the previous packet with the same identification
+		int id = (int)(sequence % this.window);
+		if (this.sendTimes.get(id) != 0)
+		{
+			this.flush();
+			long deadline = System.nanoTime() + LOSS_TIMEOUT;
+			while (this.sendTimes.get(id) != 0 
+					&& System.nanoTime() < deadline)
+			{ LockSupport.parkNanos(10000); }
+			if (this.sendTimes.getAndSet(id, 0) != 0)
+			{ this.timedOut++; }
+		}
+
+		packet[IP_ID_OFFSET] = (byte)(id >> 8);
+		packet[IP_ID_OFFSET + 1] = (byte)id;
+		packet[IP_CHECKSUM_OFFSET] = 0;
+		packet[IP_CHECKSUM_OFFSET + 1] = 0;
+		int ihl = (packet[IP_OFFSET] & 0xf) * 4;
+		int checksum = checksum(packet, IP_OFFSET, ihl);
+		packet[IP_CHECKSUM_OFFSET] = (byte)(checksum >> 8);
+		packet[IP_CHECKSUM_OFFSET + 1] = (byte)checksum;
+
+		// Record the send time before the packet is buffered, since the ARP
+		// replies written by the receiver thread also flush the buffer
+		synchronized(this.writeLock)
+		{
+			this.sendTimes.set(id,
+					this.measuring ? System.nanoTime() : WARMUP_SEND_TIME);
+			this.out.write(packet);
+		}
+		this.pendingCount++;
+		if (this.measuring)
+		{ this.sent++; }
+		if (SEND_BATCH == this.pendingCount)
+		{ this.flush(); }
+	}
+
+	/**
+	 * Write buffered packets to the router.
+	 */
+	private void flush() throws IOException
+	{
+		this.pendingCount = 0;
+		synchronized(this.writeLock)
+		{ this.out.flush(); }
+	}
+
+	private static int checksum(byte[] data, int offset, int length)
+	{
+		int sum = 0;
+		for (int i = 0; i < length; i += 2)
+		{ sum += ((data[offset + i] & 0xff) << 8) | (data[offset + i + 1] & 0xff); }
+		while ((sum >> 16) != 0)
+		{ sum = (sum & 0xffff) + (sum >> 16); }
+		return ~sum & 0xffff;
+	}
+
+	/**
+	 * Read packets from the router until the connection is closed.
+	 */
+	private void receive()
+	{
+		byte[] buf = new byte[64 * 1024];
+		try
+		{
+			while (true)
+			{
+				int len = this.in.readInt();
+				int type = this.in.readInt();
+				if (len < 8 || len > buf.length)
+				{
+					System.err.println("Invalid command length " + len);
+					return;
+				}
+				this.in.readFully(buf, 8, len - 8);
+				if (Command.VNS_PACKET == type
+						&& len >= CommandPacket.FRAME_OFFSET
+								+ ETHER_HEADER_LENGTH)
+				{ this.handlePacket(buf, len); }
+				else if (type != Command.VNS_CLOSE)
+				{ this.otherPackets++; }
+			}
+		}
+		catch (IOException e)
+		{ }
+	}
+
+	private void handlePacket(byte[] data, int len) throws IOException
+	{
+		long now = System.nanoTime();
+		Topology.Port port = null;
+		for (Topology.Port candidate : this.ports)
+		{
+			if (CommandPacket.matchesInterfaceName(data, 0,
+					candidate.getName()))
+			{ port = candidate; }
+		}
+		ByteBuffer bb = ByteBuffer.wrap(data, 0, len);
+		int frame = CommandPacket.FRAME_OFFSET;
+		short etherType = bb.getShort(frame + 12);
+		if (null == port)
+		{ this.otherPackets++; }
+		else if (ETHER_TYPE_ARP == etherType)
+		{ this.handleArp(bb, port); }
+		else if (ETHER_TYPE_IPV4 == etherType
+				&& len >= IP_OFFSET + IP_HEADER_LENGTH)
+		{
+			byte[] peerMac = port.getPeer().getMacAddress();
+			boolean delivered = true;
+			for (int i = 0; i < peerMac.length; i++)
+			{ delivered = delivered && data[frame + i] == peerMac[i]; }
+
+			if (PROTOCOL_ICMP == data[IP_OFFSET + 9]
+					&& this.isRouterAddress(bb.getInt(IP_OFFSET + 12)))
+			{ this.icmpMessages++; }
+			else if (!delivered)
+			{ this.misdelivered++; }
+			else
+			{
+				int id = bb.getShort(IP_ID_OFFSET) & 0xffff;
+				long sendTime = (id < this.window) 
+						? this.sendTimes.getAndSet(id, 0) : 0;
+				if (0 == sendTime)
+				{ this.unmatched++; }
+				else if (sendTime != WARMUP_SEND_TIME)
+				{
+					long latency = (now - sendTime) / 1000;
+					this.latencies[(int)Math.min(latency, MAX_LATENCY)]++;
+					this.maxLatency = Math.max(this.maxLatency, latency);
+					this.lastReceiveTime = now;
+					this.forwarded++;
+				}
+			}
+		}
+		else
+		{ this.otherPackets++; }
+	}
+
+	private boolean isRouterAddress(int ip)
+	{
+		for (Topology.Port port : this.ports)
+		{
+			if (port.getIpAddress() == ip)
+			{ return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Answer an ARP request from the router for the peer of an interface.
+	 */
+	private void handleArp(ByteBuffer request, Topology.Port port)
+			throws IOException
+	{
+		int arp = CommandPacket.FRAME_OFFSET + ETHER_HEADER_LENGTH;
+		Topology.Port peer = port.getPeer();
+		if (request.limit() < arp + 28 || request.getShort(arp + 6) != 1
+				|| request.getInt(arp + 24) != peer.getIpAddress())
+		{
+			this.otherPackets++;
+			return;
+		}
+		this.arpRequests++;
+
+		byte[] senderMac = new byte[6];
+		request.position(arp + 8);
+		request.get(senderMac);
+		int senderIp = request.getInt();
+
+		ByteBuffer reply = ByteBuffer.allocate(ETHER_HEADER_LENGTH + 28);
+		reply.put(senderMac);
+		reply.put(peer.getMacAddress());
+		reply.putShort(ETHER_TYPE_ARP);
+		reply.putShort((short)1); // Ethernet
+		reply.putShort(ETHER_TYPE_IPV4);
+		reply.put((byte)6);
+		reply.put((byte)4);
+		reply.putShort((short)2); // Reply
+		reply.put(peer.getMacAddress());
+		reply.putInt(peer.getIpAddress());
+		reply.put(senderMac);
+		reply.putInt(senderIp);
+		byte[] packet = CommandPacket.serialize(port.getName(),
+				reply.array(), 0, reply.capacity());
+		synchronized(this.writeLock)
+		{
+			this.out.write(packet);
+			this.out.flush();
+		}
+	}
+
+	/**
+	 * Print the forwarding rate, drops, and latency percentiles of the
+	 * measured packets.
+	 */
+	private void report()
+	{
+		long received = this.forwarded;
+		long lastReceive = this.lastReceiveTime;
+		long dropped = this.sent - received;
+		double elapsed = (lastReceive - this.firstSendTime) / 1e9;
+		System.out.println("---------------------------------------------");
+		System.out.println(String.format(
+				"Router %s, traffic pattern of %d packets", this.router,
+				this.packets.size()));
+		System.out.println(String.format("Sent       %d packets", this.sent));
+		System.out.println(String.format(
+				"Forwarded  %d packets in %.3f s (%.0f pps)", received,
+				elapsed, elapsed > 0 ? received / elapsed : 0));
+		System.out.println(String.format("Dropped    %d packets (%.2f%%)",
+				dropped, this.sent > 0 ? 100.0 * dropped / this.sent : 0));
+		if (received > 0)
+		{
+			System.out.println(String.format(
+					"Latency    p50 %d us, p90 %d us, p99 %d us, "
+					+ "p99.9 %d us, max %d us", this.percentile(received, 0.5),
+					this.percentile(received, 0.9),
+					this.percentile(received, 0.99),
+					this.percentile(received, 0.999), this.maxLatency));
+		}
+		System.out.println(String.format(
+				"ARP requests %d, ICMP %d, misdelivered %d, timed out %d, "
+				+ "unmatched %d, other %d", this.arpRequests, 
+				this.icmpMessages, this.misdelivered, this.timedOut, 
+				this.unmatched, this.otherPackets));
+		System.out.println("---------------------------------------------");
+	}
+
+	/**
+	 * @return the smallest latency (in microseconds) at least a fraction of
+	 *         the received packets did not exceed
+	 */
+	private long percentile(long received, double fraction)
+	{
+		long target = (long)Math.ceil(received * fraction);
+		long seen = 0;
+		for (int i = 0; i < this.latencies.length; i++)
+		{
+			seen += this.latencies[i];
+			if (seen >= target)
+			{ return i; }
+		}
+		return MAX_LATENCY;
+	}
+
+	/**
+	 * End the session with the router, and wait for the receiver thread to
+	 * stop.
+	 */
+	private void close()
+	{
+		try
+		{
+			byte[] msg = new byte[256];
+			byte[] reason = "emulation finished".getBytes();
+			System.arraycopy(reason, 0, msg, 0, reason.length);
+			synchronized(this.writeLock)
+			{
+				this.out.writeInt(8 + msg.length);
+				this.out.writeInt(Command.VNS_CLOSE);
+				this.out.write(msg);
+				this.out.flush();
+			}
+			this.socket.shutdownOutput();
+			this.receiverThread.join(DRAIN_TIME);
+			this.socket.close();
+		}
+		catch (IOException e)
+		{ }
+		catch (InterruptedException e)
+		{ }
+	}
+}
@@ -20,6 +20,8 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import net.floodlightcontroller.util.MACAddress;
+
 /**
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -134,6 +136,23 @@ public class ARP extends BasePacket {
         return this;
     }
 
+    /**
+     * @param senderHardwareAddress the sender MAC address to set, in the
+     *        lower 48 bits
+     */
+    public ARP setSenderHardwareAddress(long senderHardwareAddress) {
+        this.senderHardwareAddress = MACAddress.valueOf(senderHardwareAddress).toBytes();
+        return this;
+    }
+
+    /**
+     * @return the senderHardwareAddress as a MAC address in the lower 48 bits
+     *         of a long, read without copying
+     */
+    public long getSenderHardwareAddressAsLong() {
+        return MACAddress.toLong(senderHardwareAddress, 0);
+    }
+
     /**
      * @return the senderProtocolAddress
      */
@@ -169,6 +188,15 @@ public class ARP extends BasePacket {
         return this;
     }
 
+    /**
+     * @param targetHardwareAddress the target MAC address to set, in the
+     *        lower 48 bits
+     */
+    public ARP setTargetHardwareAddress(long targetHardwareAddress) {
+        this.targetHardwareAddress = MACAddress.valueOf(targetHardwareAddress).toBytes();
+        return this;
+    }
+
     /**
      * @return the targetProtocolAddress
      */
@@ -208,22 +236,50 @@ public class ARP extends BasePacket {
 
     @Override
     public byte[] serialize() {
-        int length = 8 + (2 * (0xff & this.hardwareAddressLength))
-                + (2 * (0xff & this.protocolAddressLength));
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.putShort(this.hardwareType);
-        bb.putShort(this.protocolType);
-        bb.put(this.hardwareAddressLength);
-        bb.put(this.protocolAddressLength);
-        bb.putShort(this.opCode);
-        bb.put(this.senderHardwareAddress, 0, 0xff & this.hardwareAddressLength);
-        bb.put(this.senderProtocolAddress, 0, 0xff & this.protocolAddressLength);
-        bb.put(this.targetHardwareAddress, 0, 0xff & this.hardwareAddressLength);
-        bb.put(this.targetProtocolAddress, 0, 0xff & this.protocolAddressLength);
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
         return data;
     }
 
+    @Override
+    public int getSerializedLength() {
+        return 8 + (2 * (0xff & this.hardwareAddressLength))
+                + (2 * (0xff & this.protocolAddressLength));
+    }
+
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
+        dst.putShort(this.hardwareType);
+        dst.putShort(this.protocolType);
+        dst.put(this.hardwareAddressLength);
+        dst.put(this.protocolAddressLength);
+        dst.putShort(this.opCode);
+        dst.put(this.senderHardwareAddress, 0, 0xff & this.hardwareAddressLength);
+        dst.put(this.senderProtocolAddress, 0, 0xff & this.protocolAddressLength);
+        dst.put(this.targetHardwareAddress, 0, 0xff & this.hardwareAddressLength);
+        dst.put(this.targetProtocolAddress, 0, 0xff & this.protocolAddressLength);
+        return dst;
+    }
+
+    /**
+     * Address arrays are replaced rather than reused, since callers may keep
+     * references to them.
+     */
+    @Override
+    public IPacket reset() {
+        super.reset();
+        this.hardwareType = 0;
+        this.protocolType = 0;
+        this.hardwareAddressLength = 0;
+        this.protocolAddressLength = 0;
+        this.opCode = 0;
+        this.senderHardwareAddress = null;
+        this.senderProtocolAddress = null;
+        this.targetHardwareAddress = null;
+        this.targetProtocolAddress = null;
+        return this;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -17,15 +17,59 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /**
+     * Whether payloads are decoded when they are first accessed, rather
+     * than when the enclosing packet is deserialized
+     */
+    private static volatile boolean lazyDecoding = false;
+
+    /** Factory creating payloads that are decoded as Data */
+    private static final Supplier<IPacket> DATA_FACTORY = Data::new;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /**
+     * Serialized payload that has not been decoded yet; null if the payload
+     * has been decoded or set. The bytes are not copied, so the buffer
+     * passed to deserialize must not be modified while the packet is in use.
+     */
+    protected byte[] rawPayload;
+    protected int rawPayloadOffset;
+    protected int rawPayloadLength;
+
+    /** Factory that created the payload; null if the payload was not decoded */
+    private Supplier<?> payloadFactory;
+
+    /** Payload kept by reset for reuse, and the factory that created it */
+    private IPacket sparePayload;
+    private Supplier<?> spareFactory;
+
+    /**
+     * @param lazy true if payloads should be decoded when they are first
+     *        accessed through getPayload, rather than when the enclosing
+     *        packet is deserialized; payloads that are never accessed are
+     *        serialized by copying their original bytes
+     */
+    public static void setLazyDecoding(boolean lazy) {
+        lazyDecoding = lazy;
+    }
+
+    /**
+     * @return true if payloads are decoded when they are first accessed
+     */
+    public static boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +92,13 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (this.rawPayload != null) {
+            this.payload = this.decodePayload(this.rawPayload,
+                    this.rawPayloadOffset, this.rawPayloadLength);
+            if (this.payload != null)
+                this.payload.setParent(this);
+            this.rawPayload = null;
+        }
         return payload;
     }
 
@@ -57,8 +108,127 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.payloadFactory = null;
+        this.rawPayload = null;
+        return this;
+    }
+
+    @Override
+    public IPacket reset() {
+        if (this.payload != null && this.payloadFactory != null) {
+            this.sparePayload = this.payload;
+            this.spareFactory = this.payloadFactory;
+        }
+        this.parent = null;
+        this.payload = null;
+        this.payloadFactory = null;
+        this.rawPayload = null;
         return this;
     }
+
+    /**
+     * Get an empty payload object to deserialize into, reusing the payload
+     * kept by reset if it was created by the same factory.
+     * @param factory creates an empty payload; null for Data
+     * @return an empty payload
+     */
+    protected IPacket newPayload(Supplier<?> factory) {
+        if (factory == null)
+            factory = DATA_FACTORY;
+        IPacket payload;
+        if (this.sparePayload != null && this.spareFactory == factory) {
+            payload = this.sparePayload.reset();
+            this.sparePayload = null;
+            this.spareFactory = null;
+        } else {
+            payload = (IPacket) factory.get();
+        }
+        this.payloadFactory = factory;
+        return payload;
+    }
+
+    /**
+     * Set the payload from serialized data following this packet's header.
+     * The payload is decoded immediately, or on first access if lazy
+     * decoding is enabled.
+     * @param data buffer containing the serialized payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    protected void deserializePayload(byte[] data, int offset, int length) {
+        if (lazyDecoding) {
+            this.payload = null;
+            this.payloadFactory = null;
+            this.rawPayload = data;
+            this.rawPayloadOffset = offset;
+            this.rawPayloadLength = length;
+        } else {
+            this.rawPayload = null;
+            this.payload = this.decodePayload(data, offset, length);
+            if (this.payload != null)
+                this.payload.setParent(this);
+        }
+    }
+
+    /**
+     * Create and deserialize the payload of this packet. Packets whose
+     * payload type depends on their header fields override this.
+     * @param data buffer containing the serialized payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     * @return the decoded payload
+     */
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return this.newPayload(null).deserialize(data, offset, length);
+    }
+
+    /**
+     * Serialize the payload of this packet into a buffer; a payload that has
+     * not been decoded is copied from its original bytes.
+     * @param dst buffer to write to, starting at its position
+     */
+    protected void serializePayloadInto(ByteBuffer dst) {
+        if (this.rawPayload != null) {
+            dst.put(this.rawPayload, this.rawPayloadOffset,
+                    this.rawPayloadLength);
+        } else if (this.payload != null) {
+            this.payload.setParent(this);
+            this.payload.serializeInto(dst);
+        }
+    }
+
+    /**
+     * @return the length of the payload of this packet when serialized; 0 if
+     *         there is no payload
+     */
+    protected int getPayloadLength() {
+        if (this.rawPayload != null)
+            return this.rawPayloadLength;
+        if (this.payload == null)
+            return 0;
+        this.payload.setParent(this);
+        return this.payload.getSerializedLength();
+    }
+
+    /**
+     * Packet types that do not compute their length in advance are
+     * serialized to find it.
+     */
+    @Override
+    public int getSerializedLength() {
+        byte[] data = this.serialize();
+        return (data == null) ? 0 : data.length;
+    }
+
+    /**
+     * Packet types that do not serialize into a buffer are serialized to an
+     * array, which is then copied into the buffer.
+     */
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
+        byte[] data = this.serialize();
+        return (data == null) ? dst : dst.put(data);
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +243,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +260,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
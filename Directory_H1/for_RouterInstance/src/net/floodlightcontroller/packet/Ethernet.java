@@ -18,9 +18,7 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 import net.floodlightcontroller.util.MACAddress;
 import org.openflow.util.HexString;
@@ -38,19 +36,33 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
-    public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
+
+    /** Factories creating payloads, indexed by EtherType; null for Data */
+    private static final Supplier<?>[] etherTypeFactories = new Supplier<?>[1 << 16];
 
     static {
-        etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
-        etherTypeClassMap.put(TYPE_LLDP, LLDP.class);
-        etherTypeClassMap.put(TYPE_BSN, BSN.class);
+        registerEtherType(TYPE_ARP, ARP::new);
+        registerEtherType(TYPE_RARP, ARP::new);
+        registerEtherType(TYPE_IPv4, IPv4::new);
+        registerEtherType(TYPE_LLDP, LLDP::new);
+        registerEtherType(TYPE_BSN, BSN::new);
+    }
+
+    /**
+     * Register the factory creating the payload of frames with an EtherType.
+     * Should be called before any frames are deserialized.
+     * @param etherType the EtherType
+     * @param factory creates an empty payload to deserialize into; null to
+     *        decode the payload as Data
+     */
+    public static void registerEtherType(short etherType,
+            Supplier<? extends IPacket> factory) {
+        etherTypeFactories[etherType & 0xffff] = factory;
     }
 
-    protected MACAddress destinationMACAddress;
-    protected MACAddress sourceMACAddress;
+    /** MAC addresses, in the lower 48 bits */
+    protected long destinationMACAddress;
+    protected long sourceMACAddress;
     protected byte priorityCode;
     protected short vlanID;
     protected short etherType;
@@ -68,13 +80,20 @@ public class Ethernet extends BasePacket {
      * @return the destination MAC as a byte array
      */
     public byte[] getDestinationMACAddress() {
-        return destinationMACAddress.toBytes();
+        return toByteArray(destinationMACAddress);
     }
     
     /**
      * @return the destination MAC
      */
     public MACAddress getDestinationMAC() {
+        return MACAddress.valueOf(destinationMACAddress);
+    }
+
+    /**
+     * @return the destination MAC in the lower 48 bits of a long
+     */
+    public long getDestinationMACAddressAsLong() {
         return destinationMACAddress;
     }
 
@@ -82,7 +101,15 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(byte[] destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress).toLong();
+        return this;
+    }
+
+    /**
+     * @param destinationMACAddress the destination MAC to set, in the lower 48 bits
+     */
+    public Ethernet setDestinationMACAddress(long destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress & MACAddress.BROADCAST;
         return this;
     }
 
@@ -90,7 +117,7 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(String destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress).toLong();
         return this;
     }
 
@@ -98,13 +125,20 @@ public class Ethernet extends BasePacket {
      * @return the source MACAddress as a byte array
      */
     public byte[] getSourceMACAddress() {
-        return sourceMACAddress.toBytes();
+        return toByteArray(sourceMACAddress);
     }
     
     /**
      * @return the source MACAddress
      */
     public MACAddress getSourceMAC() {
+        return MACAddress.valueOf(sourceMACAddress);
+    }
+
+    /**
+     * @return the source MAC in the lower 48 bits of a long
+     */
+    public long getSourceMACAddressAsLong() {
         return sourceMACAddress;
     }
 
@@ -112,7 +146,15 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(byte[] sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress).toLong();
+        return this;
+    }
+
+    /**
+     * @param sourceMACAddress the source MAC to set, in the lower 48 bits
+     */
+    public Ethernet setSourceMACAddress(long sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress & MACAddress.BROADCAST;
         return this;
     }
 
@@ -120,7 +162,7 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(String sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress).toLong();
         return this;
     }
 
@@ -173,15 +215,14 @@ public class Ethernet extends BasePacket {
      * @return True if the Ethernet frame is broadcast, false otherwise
      */
     public boolean isBroadcast() {
-        assert(destinationMACAddress.length() == 6);
-        return destinationMACAddress.isBroadcast();
+        return MACAddress.isBroadcast(destinationMACAddress);
     }
     
     /**
      * @return True is the Ethernet frame is multicast, False otherwise
      */
     public boolean isMulticast() {
-        return destinationMACAddress.isMulticast();
+        return MACAddress.isMulticast(destinationMACAddress);
     }
     /**
      * Pad this packet to 60 bytes minimum, filling with zeros?
@@ -201,31 +242,49 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          this.getPayloadLength();
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        return length;
+    }
+
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
+        int start = dst.position();
+        MACAddress.writeTo(destinationMACAddress, dst);
+        MACAddress.writeTo(sourceMACAddress, dst);
         if (vlanID != VLAN_UNTAGGED) {
-            bb.putShort((short) 0x8100);
-            bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
+            dst.putShort((short) 0x8100);
+            dst.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
-        bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        dst.putShort(etherType);
+        this.serializePayloadInto(dst);
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (dst.position() - start < 60)
+                dst.put((byte) 0x0);
         }
-        return data;
+        return dst;
+    }
+
+    @Override
+    public IPacket reset() {
+        super.reset();
+        this.destinationMACAddress = 0;
+        this.sourceMACAddress = 0;
+        this.priorityCode = 0;
+        this.vlanID = VLAN_UNTAGGED;
+        this.etherType = 0;
+        this.pad = false;
+        return this;
     }
 
     @Override
@@ -233,17 +292,10 @@ public class Ethernet extends BasePacket {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(dstAddr);
-        this.destinationMACAddress = MACAddress.valueOf(dstAddr);
-
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(srcAddr);
-        this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        this.destinationMACAddress = MACAddress.toLong(data, bb.position());
+        this.sourceMACAddress = MACAddress.toLong(data,
+                bb.position() + MACAddress.MAC_ADDRESS_LENGTH);
+        bb.position(bb.position() + 2 * MACAddress.MAC_ADDRESS_LENGTH);
 
         short etherType = bb.getShort();
         if (etherType == (short) 0x8100) {
@@ -256,22 +308,16 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        Supplier<?> factory = etherTypeFactories[this.etherType & 0xffff];
+        return this.newPayload(factory).deserialize(data, offset, length);
+    }
+
     /**
      * Checks to see if a string is a valid MAC address.
      * @param macAddress
@@ -327,12 +373,12 @@ public class Ethernet extends BasePacket {
     public int hashCode() {
         final int prime = 7867;
         int result = super.hashCode();
-        result = prime * result + destinationMACAddress.hashCode();
+        result = prime * result + (int) (destinationMACAddress ^ (destinationMACAddress >>> 32));
         result = prime * result + etherType;
         result = prime * result + vlanID;
         result = prime * result + priorityCode;
         result = prime * result + (pad ? 1231 : 1237);
-        result = prime * result + sourceMACAddress.hashCode();
+        result = prime * result + (int) (sourceMACAddress ^ (sourceMACAddress >>> 32));
         return result;
     }
 
@@ -348,7 +394,7 @@ public class Ethernet extends BasePacket {
         if (!(obj instanceof Ethernet))
             return false;
         Ethernet other = (Ethernet) obj;
-        if (!destinationMACAddress.equals(other.destinationMACAddress))
+        if (destinationMACAddress != other.destinationMACAddress)
             return false;
         if (priorityCode != other.priorityCode)
             return false;
@@ -358,7 +404,7 @@ public class Ethernet extends BasePacket {
             return false;
         if (pad != other.pad)
             return false;
-        if (!sourceMACAddress.equals(other.sourceMACAddress))
+        if (sourceMACAddress != other.sourceMACAddress)
             return false;
         return true;
     }
@@ -82,45 +82,46 @@ public class ICMP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public int getSerializedLength() {
+        return 4 + this.getPayloadLength();
+    }
 
-        bb.put(this.icmpType);
-        bb.put(this.icmpCode);
-        bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
+        int start = dst.position();
+        dst.put(this.icmpType);
+        dst.put(this.icmpCode);
+        dst.putShort(this.checksum);
+        this.serializePayloadInto(dst);
+        int length = dst.position() - start;
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_ICMP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & dst.getShort(start + i * 2);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (dst.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(2, this.checksum);
+            dst.putShort(start + 2, this.checksum);
         }
-        return data;
+        return dst;
     }
 
     /* (non-Javadoc)
@@ -157,6 +158,15 @@ public class ICMP extends BasePacket {
         return true;
     }
 
+    @Override
+    public IPacket reset() {
+        super.reset();
+        this.icmpType = 0;
+        this.icmpCode = 0;
+        this.checksum = 0;
+        return this;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -164,9 +174,7 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
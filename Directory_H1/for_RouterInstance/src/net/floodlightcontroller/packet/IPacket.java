@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -60,6 +62,24 @@ public interface IPacket {
      */
     public byte[] serialize();
 
+    /**
+     * Sets all payloads parent packet if applicable, then computes the
+     * length of this packet and all payloads when serialized, without
+     * serializing them
+     * @return the length in bytes
+     */
+    public int getSerializedLength();
+
+    /**
+     * Sets all payloads parent packet if applicable, then serializes this 
+     * packet and all payloads into a buffer, writing each byte once
+     * @param dst buffer to write to, starting at its position
+     * @return dst, positioned after the serialized packet
+     * @throws java.nio.BufferOverflowException if dst does not have enough
+     *         space remaining
+     */
+    public ByteBuffer serializeInto(ByteBuffer dst);
+
     /**
      * Deserializes this packet layer and all possible payloads
      * @param data
@@ -68,6 +88,14 @@ public interface IPacket {
      * @return the deserialized data
      */
     public IPacket deserialize(byte[] data, int offset, int length);
+
+    /**
+     * Clears this packet's fields, payload and parent, so the packet can be
+     * reused to deserialize another packet. Payload objects are kept and
+     * reused if the next payload deserialized has the same type.
+     * @return this packet
+     */
+    public IPacket reset();
     
     /** Clone this packet and its payload packet but not its parent. 
      * 
@@ -20,11 +20,11 @@
  */
 package net.floodlightcontroller.packet;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -34,13 +34,26 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
-    public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
+
+    /** Factories creating payloads, indexed by protocol number; null for Data */
+    private static final Supplier<?>[] protocolFactories = new Supplier<?>[1 << 8];
 
     static {
-        protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        registerProtocol(PROTOCOL_ICMP, ICMP::new);
+        registerProtocol(PROTOCOL_TCP, TCP::new);
+        registerProtocol(PROTOCOL_UDP, UDP::new);
+    }
+
+    /**
+     * Register the factory creating the payload of packets with a protocol
+     * number. Should be called before any packets are deserialized.
+     * @param protocol the protocol number
+     * @param factory creates an empty payload to deserialize into; null to
+     *        decode the payload as Data
+     */
+    public static void registerProtocol(byte protocol,
+            Supplier<? extends IPacket> factory) {
+        protocolFactories[protocol & 0xff] = factory;
     }
 
     protected byte version;
@@ -215,6 +228,52 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Verifies the header checksum against the header fields, without
+     * serializing the packet or its payload.
+     * @return true if the header checksum is correct, otherwise false
+     */
+    public boolean isChecksumValid() {
+        int accumulation = 0;
+        accumulation += (((this.version & 0xf) << 4)
+                | (this.headerLength & 0xf)) << 8 | (this.diffServ & 0xff);
+        accumulation += this.totalLength & 0xffff;
+        accumulation += this.identification & 0xffff;
+        accumulation += ((this.flags & 0x7) << 13)
+                | (this.fragmentOffset & 0x1fff);
+        accumulation += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        accumulation += this.checksum & 0xffff;
+        accumulation += (this.sourceAddress >>> 16)
+                + (this.sourceAddress & 0xffff);
+        accumulation += (this.destinationAddress >>> 16)
+                + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                accumulation += ((this.options[i] & 0xff) << 8)
+                        | (this.options[i + 1] & 0xff);
+            }
+        }
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16);
+        return (accumulation & 0xffff) == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL and updates the checksum incrementally (RFC 1624),
+     * so the checksum stays valid without recomputing it over the header.
+     * @return this
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8)
+                | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8)
+                | (this.protocol & 0xff));
+        this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -287,51 +346,91 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
 
+    @Override
+    public int getSerializedLength() {
+        int optionsLength = 0;
+        if (this.options != null)
+            optionsLength = this.options.length / 4;
+        return (5 + optionsLength) * 4 + this.getPayloadLength();
+    }
+
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
-
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-
-        bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
-        bb.put(this.diffServ);
-        bb.putShort(this.totalLength);
-        bb.putShort(this.identification);
-        bb.putShort((short) (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)));
-        bb.put(this.ttl);
-        bb.put(this.protocol);
-        bb.putShort(this.checksum);
-        bb.putInt(this.sourceAddress);
-        bb.putInt(this.destinationAddress);
+        // Write the payload after the header, then fill in the header once
+        // the total length is known
+        int start = dst.position();
+        if (dst.remaining() < this.headerLength * 4)
+            throw new BufferOverflowException();
+        dst.position(start + this.headerLength * 4);
+        this.serializePayloadInto(dst);
+        short oldTotalLength = this.totalLength;
+        this.totalLength = (short) (dst.position() - start);
+
+        // A checksum carried over from a deserialized header covers the old
+        // total length, so keep it valid if the length changed
+        if (this.checksum != 0 && this.totalLength != oldTotalLength)
+            this.checksum = updateChecksum(this.checksum, oldTotalLength,
+                    this.totalLength);
+
+        int end = dst.position();
+        dst.position(start);
+        dst.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
+        dst.put(this.diffServ);
+        dst.putShort(this.totalLength);
+        dst.putShort(this.identification);
+        dst.putShort((short) (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)));
+        dst.put(this.ttl);
+        dst.put(this.protocol);
+        dst.putShort(this.checksum);
+        dst.putInt(this.sourceAddress);
+        dst.putInt(this.destinationAddress);
         if (this.options != null)
-            bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+            dst.put(this.options);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
             for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & dst.getShort(start + i * 2);
             }
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
+            accumulation += (accumulation >> 16);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            dst.putShort(start + 10, this.checksum);
         }
-        return data;
+        dst.position(end);
+        return dst;
+    }
+
+    @Override
+    public IPacket reset() {
+        super.reset();
+        this.version = 4;
+        this.headerLength = 0;
+        this.diffServ = 0;
+        this.totalLength = 0;
+        this.identification = 0;
+        this.flags = 0;
+        this.fragmentOffset = 0;
+        this.ttl = 0;
+        this.protocol = 0;
+        this.checksum = 0;
+        this.sourceAddress = 0;
+        this.destinationAddress = 0;
+        this.options = null;
+        this.isTruncated = false;
+        return this;
     }
 
     @Override
@@ -360,19 +459,13 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        // The payload ends at the total length, not at the end of the frame,
+        // which may include Ethernet padding
+        int payloadLength = bb.limit() - bb.position();
+        int declaredLength = (this.totalLength & 0xffff) - this.headerLength * 4;
+        if (declaredLength >= 0 && declaredLength < payloadLength)
+            payloadLength = declaredLength;
+        this.deserializePayload(data, bb.position(), payloadLength);
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -382,6 +475,142 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        Supplier<?> factory = protocolFactories[this.protocol & 0xff];
+        return this.newPayload(factory).deserialize(data, offset, length);
+    }
+
+    /**
+     * Verifies the checksum of a serialized IPv4 header in place, without
+     * looking at the payload.
+     * @param data buffer containing the header
+     * @param offset offset of the first byte of the header
+     * @param headerLength length of the header in bytes
+     * @return true if the header checksum is correct, otherwise false
+     */
+    public static boolean isHeaderChecksumValid(byte[] data, int offset,
+            int headerLength) {
+        int accumulation = 0;
+        for (int i = offset; i < offset + headerLength; i += 2) {
+            accumulation += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16);
+        return (accumulation & 0xffff) == 0xffff;
+    }
+
+    /**
+     * Computes the checksum that results from replacing one 16-bit word of
+     * the checksummed data, using the incremental update from RFC 1624
+     * (HC' = ~(~HC + ~m + m')).
+     * @param checksum the current checksum
+     * @param oldWord the word being replaced
+     * @param newWord the replacement word
+     * @return the updated checksum
+     */
+    public static short updateChecksum(short checksum, short oldWord,
+            short newWord) {
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16);
+        return (short) (~accumulation & 0xffff);
+    }
+
+    /**
+     * Decrements the TTL of a serialized IPv4 header in place, updating the
+     * header checksum incrementally instead of recomputing it.
+     * @param data buffer containing the header
+     * @param offset offset of the first byte of the header
+     */
+    public static void decrementTtl(byte[] data, int offset) {
+        short oldWord = (short) (((data[offset + 8] & 0xff) << 8)
+                | (data[offset + 9] & 0xff));
+        short newWord = (short) (oldWord - 0x100);
+        short checksum = (short) (((data[offset + 10] & 0xff) << 8)
+                | (data[offset + 11] & 0xff));
+        checksum = updateChecksum(checksum, oldWord, newWord);
+        data[offset + 8] = (byte) (newWord >> 8);
+        data[offset + 10] = (byte) (checksum >> 8);
+        data[offset + 11] = (byte) checksum;
+    }
+
+    /**
+     * Hashes the 5-tuple identifying the flow a packet belongs to, so that all
+     * of a flow's packets can be sent along the same path.
+     * @param sourceAddress source IP address
+     * @param destinationAddress destination IP address
+     * @param protocol IP protocol number
+     * @param ports source port in the upper 16 bits and destination port in
+     *        the lower 16 bits; 0 if the packet has no ports
+     * @return hash of the flow
+     */
+    public static int flowHash(int sourceAddress, int destinationAddress,
+            byte protocol, int ports) {
+        int hash = sourceAddress * 0x9E3779B9;
+        hash = (hash ^ destinationAddress) * 0x85EBCA6B;
+        hash = (hash ^ ports ^ (protocol & 0xff)) * 0xC2B2AE35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Hashes the flow of a serialized IPv4 packet in place; see
+     * getFlowHash.
+     * @param data buffer containing the packet
+     * @param offset offset of the first byte of the header
+     * @param length number of bytes of the packet in the buffer
+     * @return hash of the flow
+     */
+    public static int flowHash(byte[] data, int offset, int length) {
+        int headerLength = (data[offset] & 0xf) * 4;
+        byte protocol = data[offset + 9];
+        int ports = 0;
+        boolean fragment = (data[offset + 6] & 0x3f) != 0
+                || data[offset + 7] != 0;
+        if (!fragment && (PROTOCOL_TCP == protocol || PROTOCOL_UDP == protocol)
+                && length >= headerLength + 4) {
+            int i = offset + headerLength;
+            ports = ((data[i] & 0xff) << 24) | ((data[i + 1] & 0xff) << 16)
+                    | ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+        }
+        return flowHash(readInt(data, offset + 12), readInt(data, offset + 16),
+                protocol, ports);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Hashes the 5-tuple identifying the flow this packet belongs to. Ports
+     * are only included for TCP and UDP packets that are not fragments,
+     * since only the first fragment carries them, so every fragment of a
+     * packet hashes to the same value.
+     * @return hash of the flow
+     */
+    public int getFlowHash() {
+        int ports = 0;
+        if ((this.flags & 0x1) == 0 && this.fragmentOffset == 0) {
+            IPacket payload = (PROTOCOL_TCP == this.protocol
+                    || PROTOCOL_UDP == this.protocol) ? this.getPayload() : null;
+            if (payload instanceof TCP) {
+                TCP tcp = (TCP) payload;
+                ports = (tcp.getSourcePort() << 16)
+                        | (tcp.getDestinationPort() & 0xffff);
+            } else if (payload instanceof UDP) {
+                UDP udp = (UDP) payload;
+                ports = (udp.getSourcePort() << 16)
+                        | (udp.getDestinationPort() & 0xffff);
+            }
+        }
+        return flowHash(this.sourceAddress, this.destinationAddress,
+                this.protocol, ports);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
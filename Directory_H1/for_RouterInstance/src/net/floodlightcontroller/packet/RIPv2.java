@@ -39,17 +39,34 @@ public class RIPv2 extends BasePacket
 	@Override
 	public byte[] serialize() 
     {
-		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
-		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+		byte[] data = new byte[this.getSerializedLength()];
+		this.serializeInto(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	@Override
+	public int getSerializedLength()
+	{ return 1 + 1 + 2 + this.entries.size() * (5*4); }
 
-		bb.put(this.command);
-		bb.put(this.version);
-		bb.putShort((short)0); // Put padding
+	@Override
+	public ByteBuffer serializeInto(ByteBuffer dst)
+	{
+		dst.put(this.command);
+		dst.put(this.version);
+		dst.putShort((short)0); // Put padding
 		for (RIPv2Entry entry : this.entries)
-		{ bb.put(entry.serialize()); }
+		{ entry.serializeInto(dst); }
+		return dst;
+	}
 
-		return data;
+	@Override
+	public IPacket reset()
+	{
+		super.reset();
+		this.command = 0;
+		this.version = VERSION;
+		this.entries = new LinkedList<RIPv2Entry>();
+		return this;
 	}
 
 	@Override
@@ -61,7 +78,8 @@ public class RIPv2 extends BasePacket
 		this.version = bb.get();
         bb.getShort(); // Consume padding
 		this.entries = new LinkedList<RIPv2Entry>();
-        while (bb.position() < bb.limit())
+        // Ignore a truncated entry at the end of the packet
+        while (bb.remaining() >= 5*4)
         {
             RIPv2Entry entry = new RIPv2Entry();
             entry.deserialize(data, bb.position(), bb.limit()-bb.position());
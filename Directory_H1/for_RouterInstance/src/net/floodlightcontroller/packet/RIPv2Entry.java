@@ -76,17 +76,21 @@ public class RIPv2Entry
     {
 		int length = 2*2 + 4*4;
 		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-
-		bb.putShort(this.addressFamily);
-		bb.putShort(this.routeTag);
-        bb.putInt(this.address);
-        bb.putInt(this.subnetMask);
-        bb.putInt(this.nextHopAddress);
-        bb.putInt(this.metric);
+		this.serializeInto(ByteBuffer.wrap(data));
 		return data;
 	}
 
+	public ByteBuffer serializeInto(ByteBuffer dst)
+	{
+		dst.putShort(this.addressFamily);
+		dst.putShort(this.routeTag);
+        dst.putInt(this.address);
+        dst.putInt(this.subnetMask);
+        dst.putInt(this.nextHopAddress);
+        dst.putInt(this.metric);
+		return dst;
+	}
+
 	public RIPv2Entry deserialize(byte[] data, int offset, int length) 
 	{
 		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 /**
@@ -151,44 +152,55 @@ public class TCP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length;
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        int headerLength = (dataOffset == 0) ? 5 : dataOffset;
+        return (headerLength << 2) + this.getPayloadLength();
+    }
+
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
-        length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
 
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        // Write the payload after the header, then fill in the header once
+        // the length is known
+        int start = dst.position();
+        if (dst.remaining() < (dataOffset << 2))
+            throw new BufferOverflowException();
+        dst.position(start + (dataOffset << 2));
+        this.serializePayloadInto(dst);
+        int length = dst.position() - start;
 
-        bb.putShort(this.sourcePort);
-        bb.putShort(this.destinationPort);
-        bb.putInt(this.sequence);
-        bb.putInt(this.acknowledge);
-        bb.putShort((short) (this.flags | (dataOffset << 12)));
-        bb.putShort(this.windowSize);
-        bb.putShort(this.checksum);
-        bb.putShort(this.urgentPointer);
+        int end = dst.position();
+        dst.position(start);
+        dst.putShort(this.sourcePort);
+        dst.putShort(this.destinationPort);
+        dst.putInt(this.sequence);
+        dst.putInt(this.acknowledge);
+        dst.putShort((short) (this.flags | (dataOffset << 12)));
+        dst.putShort(this.windowSize);
+        dst.putShort(this.checksum);
+        dst.putShort(this.urgentPointer);
         if (dataOffset > 5) {
             int padding;
-            bb.put(options);
+            dst.put(options);
             padding = (dataOffset << 2) - 20 - options.length;
             for (int i = 0; i < padding; i++)
-                bb.put((byte) 0);
+                dst.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        dst.position(end);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -203,19 +215,19 @@ public class TCP extends BasePacket {
             }
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & dst.getShort(start + i * 2);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (dst.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(16, this.checksum);
+            dst.putShort(start + 16, this.checksum);
         }
-        return data;
+        return dst;
     }
 
     /* (non-Javadoc)
@@ -256,6 +268,22 @@ public class TCP extends BasePacket {
                (dataOffset == 5 || options.equals(other.options));
     }
 
+    @Override
+    public IPacket reset() {
+        super.reset();
+        this.sourcePort = 0;
+        this.destinationPort = 0;
+        this.sequence = 0;
+        this.acknowledge = 0;
+        this.dataOffset = 0;
+        this.flags = 0;
+        this.windowSize = 0;
+        this.checksum = 0;
+        this.urgentPointer = 0;
+        this.options = null;
+        return this;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -282,9 +310,7 @@ public class TCP extends BasePacket {
             }
         }
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
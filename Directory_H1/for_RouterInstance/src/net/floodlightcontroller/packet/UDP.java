@@ -17,28 +17,42 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class UDP extends BasePacket {
-    public static Map<Short, Class<? extends IPacket>> decodeMap;
     public static short DHCP_SERVER_PORT = (short)67;
     public static short DHCP_CLIENT_PORT = (short)68;
     public static short RIP_PORT = (short)520;
 
+    /** Factories creating payloads, indexed by port; null for Data */
+    private static final Supplier<?>[] portFactories = new Supplier<?>[1 << 16];
+
     static {
-        decodeMap = new HashMap<Short, Class<? extends IPacket>>();
         /*
          * Disable DHCP until the deserialize code is hardened to deal with garbage input
          */
-        UDP.decodeMap.put(DHCP_SERVER_PORT, DHCP.class);
-        UDP.decodeMap.put(DHCP_CLIENT_PORT, DHCP.class); 
-        UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+        registerPort(DHCP_SERVER_PORT, DHCP::new);
+        registerPort(DHCP_CLIENT_PORT, DHCP::new);
+        registerPort(RIP_PORT, RIPv2::new);
+    }
+
+    /**
+     * Register the factory creating the payload of datagrams sent to or from
+     * a port; the destination port takes precedence. Should be called before
+     * any datagrams are deserialized.
+     * @param port the port
+     * @param factory creates an empty payload to deserialize into; null to
+     *        decode the payload as Data
+     */
+    public static void registerPort(short port,
+            Supplier<? extends IPacket> factory) {
+        portFactories[port & 0xffff] = factory;
     }
 
     protected short sourcePort;
@@ -111,31 +125,40 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
+    @Override
+    public int getSerializedLength() {
+        return 8 + this.getPayloadLength();
+    }
 
-        byte[] data = new byte[this.length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public ByteBuffer serializeInto(ByteBuffer dst) {
+        // Write the payload after the header, then fill in the header once
+        // the length is known
+        int start = dst.position();
+        if (dst.remaining() < 8)
+            throw new BufferOverflowException();
+        dst.position(start + 8);
+        this.serializePayloadInto(dst);
+        this.length = (short) (dst.position() - start);
 
-        bb.putShort(this.sourcePort);
-        bb.putShort(this.destinationPort);
-        bb.putShort(this.length);
-        bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        int end = dst.position();
+        dst.position(start);
+        dst.putShort(this.sourcePort);
+        dst.putShort(this.destinationPort);
+        dst.putShort(this.length);
+        dst.putShort(this.checksum);
+        dst.position(end);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -150,19 +173,19 @@ public class UDP extends BasePacket {
             }
 
             for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & dst.getShort(start + i * 2);
             }
             // pad to an even number of shorts
             if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (dst.get(start + this.length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(6, this.checksum);
+            dst.putShort(start + 6, this.checksum);
         }
-        return data;
+        return dst;
     }
 
     /* (non-Javadoc)
@@ -202,6 +225,16 @@ public class UDP extends BasePacket {
         return true;
     }
 
+    @Override
+    public IPacket reset() {
+        super.reset();
+        this.sourcePort = 0;
+        this.destinationPort = 0;
+        this.length = 0;
+        this.checksum = 0;
+        return this;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -210,23 +243,15 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else {
-            this.payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        Supplier<?> factory = portFactories[this.destinationPort & 0xffff];
+        if (factory == null)
+            factory = portFactories[this.sourcePort & 0xffff];
+        return this.newPayload(factory).deserialize(data, offset, length);
+    }
 }
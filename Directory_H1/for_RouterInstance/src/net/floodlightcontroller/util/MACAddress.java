@@ -1,18 +1,34 @@
 package net.floodlightcontroller.util;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
- * The class representing MAC address.
+ * The class representing MAC address. The address is held in the lower 48
+ * bits of a {@code long}, so addresses can be compared, hashed and written
+ * to buffers without allocating.
  *
  * @author Sho Shimizu (sho.shimizu@gmail.com)
  */
 public class MACAddress {
     public static final int MAC_ADDRESS_LENGTH = 6;
-    private byte[] address = new byte[MAC_ADDRESS_LENGTH];
+
+    /** The broadcast address, as a {@code long} */
+    public static final long BROADCAST = 0xffffffffffffL;
+
+    private final long address;
 
     public MACAddress(byte[] address) {
-        this.address = Arrays.copyOf(address, MAC_ADDRESS_LENGTH);
+        long mac = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            mac <<= 8;
+            if (i < address.length)
+                mac |= address[i] & 0xffL;
+        }
+        this.address = mac;
+    }
+
+    public MACAddress(long address) {
+        this.address = address & BROADCAST;
     }
 
     /**
@@ -60,16 +76,51 @@ public class MACAddress {
      * @throws IllegalArgumentException if the long value cannot be parsed as a MAC address.
      */
     public static MACAddress valueOf(long address) {
-        byte[] addressInBytes = new byte[] {
-                (byte)((address >> 40) & 0xff),
-                (byte)((address >> 32) & 0xff),
-                (byte)((address >> 24) & 0xff),
-                (byte)((address >> 16) & 0xff),
-                (byte)((address >> 8 ) & 0xff),
-                (byte)((address >> 0) & 0xff)
-        };
+        return new MACAddress(address);
+    }
 
-        return new MACAddress(addressInBytes);
+    /**
+     * Reads a MAC address from a buffer without allocating.
+     * @param data the buffer holding the address.
+     * @param offset offset of the first byte of the address in the buffer.
+     * @return the address in the lower 48 bits of a {@code long}.
+     */
+    public static long toLong(byte[] data, int offset) {
+        long mac = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            mac = (mac << 8) | (data[offset + i] & 0xffL);
+        }
+        return mac;
+    }
+
+    /**
+     * Writes a MAC address held in a {@code long} into a buffer.
+     * @param address the address, in the lower 48 bits.
+     * @param dst the buffer, positioned where the address is written.
+     */
+    public static void writeTo(long address, ByteBuffer dst) {
+        dst.putShort((short) (address >>> 32));
+        dst.putInt((int) address);
+    }
+
+    /**
+     * Returns {@code true} if a MAC address held in a {@code long} is the
+     * broadcast address.
+     * @param address the address, in the lower 48 bits.
+     * @return {@code true} if the address is the broadcast address.
+     */
+    public static boolean isBroadcast(long address) {
+        return (address & BROADCAST) == BROADCAST;
+    }
+
+    /**
+     * Returns {@code true} if a MAC address held in a {@code long} is a
+     * multicast address other than the broadcast address.
+     * @param address the address, in the lower 48 bits.
+     * @return {@code true} if the address is a multicast address.
+     */
+    public static boolean isMulticast(long address) {
+        return !isBroadcast(address) && (address & (1L << 40)) != 0;
     }
 
     /**
@@ -77,7 +128,7 @@ public class MACAddress {
      * @return the length of the {@code MACAddress}.
      */
     public int length() {
-        return address.length;
+        return MAC_ADDRESS_LENGTH;
     }
 
     /**
@@ -85,7 +136,28 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code byte} array.
      */
     public byte[] toBytes() {
-        return Arrays.copyOf(address, address.length);
+        byte[] data = new byte[MAC_ADDRESS_LENGTH];
+        this.writeTo(data, 0);
+        return data;
+    }
+
+    /**
+     * Writes the {@code MACAddress} into a buffer without allocating.
+     * @param data the buffer.
+     * @param offset offset in the buffer at which the first byte is written.
+     */
+    public void writeTo(byte[] data, int offset) {
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            data[offset + i] = (byte) (address >>> ((5 - i) * 8));
+        }
+    }
+
+    /**
+     * Writes the {@code MACAddress} into a buffer without allocating.
+     * @param dst the buffer, positioned where the address is written.
+     */
+    public void writeTo(ByteBuffer dst) {
+        writeTo(address, dst);
     }
 
     /**
@@ -93,12 +165,7 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code long}.
      */
     public long toLong() {
-        long mac = 0;
-        for (int i = 0; i < 6; i++) {
-            long t = (address[i] & 0xffL) << ((5 - i) * 8);
-            mac |= t;
-        }
-        return mac;
+        return address;
     }
 
     /**
@@ -106,11 +173,7 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the broadcast address.
      */
     public boolean isBroadcast() {
-        for (byte b : address) {
-            if (b != -1) // checks if equal to 0xff
-                return false;
-        }
-        return true;
+        return isBroadcast(address);
     }
 
     /**
@@ -118,10 +181,7 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the multicast address.
      */
     public boolean isMulticast() {
-        if (isBroadcast()) {
-            return false;
-        }
-        return (address[0] & 0x01) != 0;
+        return isMulticast(address);
     }
 
     @Override
@@ -135,18 +195,18 @@ public class MACAddress {
         }
 
         MACAddress other = (MACAddress)o;
-        return Arrays.equals(this.address, other.address);
+        return this.address == other.address;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.address);
+        return (int) (this.address ^ (this.address >>> 32));
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        for (byte b: address) {
+        for (byte b: toBytes()) {
             if (builder.length() > 0) {
                 builder.append(":");
             }